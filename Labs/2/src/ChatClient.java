@@ -6,6 +6,7 @@
 import java.applet.Applet;
 import java.awt.Button;
 import java.awt.Event;
+import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.Frame;
 import java.awt.Graphics;
@@ -14,6 +15,9 @@ import java.awt.TextField;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -29,17 +33,36 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 	static final String STATUS_DISCONNECTED = "Disconnected from the chat server";
 
 	static final int DEFAULT_PORT = 4444;
+	static final int DEFAULT_SCROLLBACK = 1000; // messages kept in the message area
+	static final char MESSAGE_SEPARATOR = '\u001E'; // between the messages of one ACK (multi)
+	static final int MAX_MESSAGES_PER_ACK = 32;
+	static final String DEFAULT_ROOM = "lobby"; // joined by the server with the name
 
 	static ClientSocketManager connection = new ClientSocketManager();
 	static boolean bConnected = false;
 	static String sConnection = STATUS_DISCONNECTED;
 
 	static String userName = null;
-    static String messageBuffer = null;
+	static ConcurrentLinkedQueue<String> outbound = new ConcurrentLinkedQueue<String>(); // typed, waiting for a POL
+	static boolean pushMode = false; // server accepted push mode, send without waiting for POL (set and read holding outbound)
+	static boolean multiMode = false; // server accepted several messages per ACK
+
+	// to resume the session after losing the connection (RSM)
+	static String lastServer = null; // server, port and name of the last session
+	static volatile long lastSeq = -1; // last message received, -1 if none
+	static ArrayList<String> rooms = new ArrayList<String>(); // joined, the last one is where we talk
 
     static TextField textField;
     static TextArea textArea;
 
+	// received by the reader thread, waiting to be shown by the AWT thread
+	static ArrayList<String> pendingLines = new ArrayList<String>();
+	static boolean displayScheduled = false;
+
+	// scrollback: length of each entry of the message area, oldest first
+	static int scrollback = DEFAULT_SCROLLBACK;
+	static ArrayDeque<Integer> entryLengths = new ArrayDeque<Integer>();
+
 	Thread thread;
 	boolean threadStop;
 
@@ -54,6 +77,7 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 
 		// message area
         textArea = new TextArea("No Messages", 15, 50);
+		entryLengths.add(textArea.getText().length());
 		this.add(textArea);
 
 		// connect button
@@ -139,13 +163,41 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 			// connect to the socket
 			connection.connect(serverIP, nPort);
 			bConnected = true;
+			synchronized (outbound) {
+				pushMode = false;
+				outbound.clear();
+			}
+			multiMode = false;
 			connection.write(userName);
+			connection.write("CAPpush multi binary seq deflate"); // ask for push mode, stay polled if refused
+
+			// same session as before the connection was lost: get what was missed,
+			// back in the same rooms, without a new "joined"
+			String server = serverIP + ":" + nPort + ":" + userName;
+			if(server.equals(lastServer) && lastSeq >= 0) {
+				StringBuilder resume = new StringBuilder("RSM").append(lastSeq);
+				synchronized(rooms) {
+					for(String room : rooms) {
+						resume.append(' ').append(room);
+					}
+				}
+				connection.write(resume.toString());
+			}
+			else {
+				lastServer = server;
+				lastSeq = -1;
+				synchronized(rooms) {
+					rooms.clear();
+					rooms.add(DEFAULT_ROOM);
+				}
+			}
 
 			// set screen messages
 			sConnection = STATUS_CONNECTED;
 
-			// define new thread
-			thread = new Thread(this);
+			// define new thread, blocks reading the server
+			thread = new Thread(this, "chat reader");
+			thread.setDaemon(true);
 			thread.start();
 
 		}
@@ -173,12 +225,76 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 			message = message.trim();
 
 			if(message.length() > 0) {
-				messageBuffer = textField.getText();
+				// commands go right away
+				if(message.startsWith("/")) {
+					sendCommand(message);
+				}
+
+				// the server would refuse it
+				else if(!ChatFrame.fits("MSG" + userName + " says: " + message, ChatFrame.MAX_MESSAGE_LENGTH)) {
+					display("*** message too long");
+				}
+
+				// push mode: send now, otherwise wait for the next POL
+				// (under the lock of the CAP reply, so the line is not queued
+				// after the queue was emptied for push mode)
+				else {
+					synchronized (outbound) {
+						if(pushMode) {
+							try {
+								connection.write("MSG" + userName + " says: " + textField.getText());
+							}
+							catch (IOException e) {}
+						}
+						else {
+							outbound.add(userName + " says: " + textField.getText().replace(MESSAGE_SEPARATOR, ' '));
+						}
+					}
+				}
 				textField.setText("");
 			}
 		}
 	}
 
+	/*
+	 * chat commands typed in the message field
+	 *   /join <room>          join a room, messages go there
+	 *   /leave <room>         leave a room
+	 *   /msg <user> <text>    private message
+	 *   /search <words>       messages holding all the words (if the server keeps an index)
+	 */
+	public void sendCommand(String command) {
+		String[] words = command.split(" +", 3);
+
+		try {
+			if(words[0].equals("/join") && words.length >= 2) {
+				connection.write("JON" + words[1]);
+				synchronized(rooms) {
+					rooms.remove(words[1]);
+					rooms.add(words[1]);
+				}
+			}
+			else if(words[0].equals("/leave") && words.length >= 2) {
+				connection.write("LEV" + words[1]);
+				synchronized(rooms) {
+					rooms.remove(words[1]);
+				}
+			}
+			else if(words[0].equals("/msg") && words.length == 3) {
+				connection.write("PRV" + words[1] + " " + userName + " says: " + words[2]);
+			}
+			else if(words[0].equals("/search") && words.length >= 2) {
+				connection.write("SRC" + command.substring(words[0].length()).trim());
+			}
+			else {
+				display("*** commands: /join <room>, /leave <room>, /msg <user> <text>, /search <words>");
+			}
+		}
+		catch (IOException e) {}
+
+		textField.setText("");
+	}
+
 	/*
 	 * Paints/updates the window according to current status
 	 */
@@ -193,10 +309,15 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 
 	/*
 	 * where it all begins...
+	 * usage: java ChatClient [-scrollback <messages>]
 	 */
 	public static void main(String args[]){
 		String sTemp = null;
 
+		if(args.length >= 2 && args[0].equals("-scrollback")) {
+			scrollback = Math.max(1, Integer.parseInt(args[1]));
+		}
+
 		// app
 		ChatClient app = new ChatClient();
 		app.init();
@@ -224,13 +345,7 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 		threadStop = false;
 
 		while(!threadStop && bConnected) { // only check server if connected
-			checkServer(); // see below
-
-			try {
-				// always make your thread sleep a bit
-				thread.sleep(10);
-			}
-			catch (InterruptedException e) {}
+			checkServer(); // see below, blocks until a line arrives
 		}
 
 		// check server
@@ -248,24 +363,54 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 
 		try {
 			// read from socket and do something
-			// frame types: SEL, POL, ACK, NAC
+			// frame types: SEL, POL, ACK, NAC, CAP, MSG (text lines, or binary frames after CAPbinary)
 			if((fromServer = connection.read()) != null) {
 
 				// SELECT (new message?)
 				if (fromServer.startsWith("SEL")) {
 					fromServer = fromServer.substring(3, fromServer.length());
-					sTemp = textArea.getText();
 
-					// append message to textarea
-					textArea.setText(sTemp + "\n" + fromServer);
+					// SEL#<seq> <message>, remembered to resume the session
+					if (fromServer.startsWith("#") && fromServer.indexOf(' ') != -1) {
+						try {
+							lastSeq = Long.parseLong(fromServer.substring(1, fromServer.indexOf(' ')));
+							fromServer = fromServer.substring(fromServer.indexOf(' ') + 1);
+						} catch (NumberFormatException e) {}
+					}
+
+					// shown by the AWT thread
+					display(fromServer);
+				}
+
+				// features accepted by the server
+				if (fromServer.startsWith("CAP")) {
+					String features = " " + fromServer.substring(3) + " ";
+					multiMode = features.contains(" multi ");
+					// frames from now on, the reply was the last text line
+					connection.setBinary(features.contains(" binary "));
+					connection.setDeflate(features.contains(" deflate "));
+
+					// typed before the reply, will not be polled for
+					synchronized (outbound) {
+						pushMode = features.contains(" push ");
+						for (String next; pushMode && (next = outbound.poll()) != null; ) {
+							connection.write("MSG" + next);
+						}
+					}
 				}
 
 				// POLLING
 				if (fromServer.startsWith("POL")) {
-					// new message to be sent
-					if (messageBuffer != null){
-						connection.write("ACK" + userName + " says: " + messageBuffer);
-						messageBuffer = null;
+					// new messages to be sent, all of them in one ACK if the server allows it
+					String next = outbound.poll();
+					if (next != null){
+						StringBuilder ack = new StringBuilder("ACK").append(next);
+						// as many as surely fit in one line (3 bytes per character at most)
+						for (int n = 1; multiMode && n < MAX_MESSAGES_PER_ACK && (next = outbound.peek()) != null
+								&& ack.length() + 1 + next.length() <= ChatFrame.MAX_MESSAGE_LENGTH / 3; ++n) {
+							ack.append(MESSAGE_SEPARATOR).append(outbound.poll());
+						}
+						connection.write(ack.toString());
 					}
 
 					// no new message
@@ -283,8 +428,59 @@ public class ChatClient extends Applet implements Runnable, ActionListener, Wind
 
 		}
 		catch (InterruptedIOException e) {}
-		catch (IOException e) {}
+		catch (IOException e) {
+			bConnected = false;
+		}
+
+	}
 
+	/*
+	 * queue a message for the message area
+	 * the messages received before the AWT thread gets to them are shown together
+	 */
+	static void display(String message) {
+		synchronized(pendingLines) {
+			pendingLines.add(message);
+
+			if(displayScheduled) {
+				return;
+			}
+			displayScheduled = true;
+		}
+
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				showPendingLines();
+			}
+		});
+	}
+
+	/*
+	 * append the pending messages to the message area (AWT thread)
+	 * and drop the oldest ones past the scrollback limit
+	 */
+	static void showPendingLines() {
+		ArrayList<String> lines;
+		synchronized(pendingLines) {
+			lines = new ArrayList<String>(pendingLines);
+			pendingLines.clear();
+			displayScheduled = false;
+		}
+
+		StringBuilder text = new StringBuilder();
+		for(String line : lines) {
+			text.append('\n').append(line);
+			entryLengths.add(line.length() + 1);
+		}
+		textArea.append(text.toString());
+
+		int removed = 0;
+		while(entryLengths.size() > scrollback) {
+			removed += entryLengths.poll();
+		}
+		if(removed > 0) {
+			textArea.replaceRange("", 0, removed);
+		}
 	}
 
 }
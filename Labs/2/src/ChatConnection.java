@@ -0,0 +1,448 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/*
+ * State of one client connection of the ChatEventLoop:
+ * the channel, the bytes read but not yet split into lines,
+ * and the buffers waiting to be written.
+ *
+ * Broadcast lines go through offer(), which limits the number of lines
+ * waiting for a client that does not read fast enough (see OverflowPolicy).
+ * Only they can be dropped: the lines queued by send() (POL, CAP, notices,
+ * history) and the ones offered as not droppable (private messages, link
+ * lines) are always written, a client that lets them pile up past twice
+ * its queue capacity is disconnected.
+ *
+ * A history request is streamed from the ChatLog: the cursor is read a few
+ * lines at a time, when the queue has room, so a long history does not fill
+ * the queue (or the heap).
+ *
+ * A client over its rate limit (see TokenBucket) is not read until it has
+ * tokens again, the lines it keeps sending wait in the socket.
+ *
+ * Once the client negotiated binary framing, the lines are written as
+ * ChatFrames.  Lines received can be text or frames, told apart by their
+ * first byte (see ChatFrame).
+ */
+public class ChatConnection {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    // what offer() does when the queue of a client is full
+    public enum OverflowPolicy {
+        DROP_OLDEST, // drop the oldest line not being written yet
+        DISCONNECT, // close the connection
+        MARK_LAGGING // stop queueing until the queue drains, then tell the client what it missed
+    }
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_LINE_LENGTH = 64 * 1024; // text lines
+    private static final int MAX_READ_BUFFER = ChatFrame.HEADER_SIZE + ChatFrame.MAX_LENGTH;
+    private static final int MAX_GATHER = 64; // buffers written by one write() call
+    private static final int HISTORY_BATCH = 64; // history lines queued at a time
+
+    int id; // set by the ChatEventLoop when added to the registry
+    ChatEventLoop loop; // the only thread using this connection
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>(); // views being written
+    private ArrayDeque<SharedBuffer> outboundShared = new ArrayDeque<SharedBuffer>(); // released once written
+    private ArrayDeque<Boolean> outboundDroppable = new ArrayDeque<Boolean>(); // broadcast lines only
+    private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // reused for gathering writes
+
+    String name = null; // first line received from the client
+    long nextPoll = 0; // when the next POL is due
+    boolean awaitingReply = false; // POL sent, waiting for ACK/NAC
+    boolean push = false; // negotiated push mode, not polled
+    boolean multi = false; // negotiated several messages per ACK
+    boolean binary = false; // negotiated ChatFrames, for the lines sent
+    boolean sequenced = false; // negotiated sequence numbers on the messages
+    boolean deflate = false; // negotiated compressed frames (binary only)
+    long joinedAt = 0; // when "joined" is posted, 0 if not pending (see RSM)
+    boolean link = false; // to another node, see ChatFederation (name is its node id)
+    ChatFederation.Peer peer = null; // link opened by this node
+    String peerOrigin = null; // of the node at the other end of a link
+    boolean relinked = false; // link to a node already linked before it was lost, see ChatFederation
+    boolean framed = false; // the last line received was a frame
+    RoomIndex.Room room = null; // where the messages of the client go
+    ArrayList<RoomIndex.Room> rooms = new ArrayList<RoomIndex.Room>(); // joined, oldest first
+    boolean dirty = false; // has buffers to flush at the end of the pass
+    boolean closed = false;
+
+    TokenBucket limit = null; // messages per second, no limit if null
+    boolean throttled = false; // over the limit, not read
+    boolean inBacklog = false; // has lines received, waiting for its turn
+    private long throttledCount = 0;
+
+    int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private boolean lagging = false;
+    private long missed = 0; // lines not queued since lagging
+    private long dropped = 0; // lines lost because the queue was full
+    private int maxDepth = 0;
+
+    ChatLog.Cursor history = null; // history being sent
+
+    public ChatConnection(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // address of the other end
+    InetAddress getRemoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    // number of lines waiting to be written
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public boolean isLagging() {
+        return lagging;
+    }
+
+    // number of times the client went over its rate limit
+    public long getThrottledCount() {
+        return throttledCount;
+    }
+
+    // stops reading the client until resume()
+    void throttle() {
+        throttled = true;
+        ++throttledCount;
+        updateInterest();
+    }
+
+    void resume() {
+        throttled = false;
+        updateInterest();
+    }
+
+    // reads what is available from the channel
+    // returns false if the client closed the connection
+    public boolean read() throws IOException {
+        if(!readBuffer.hasRemaining()) {
+            if(inBacklog) {
+                return true; // full of lines waiting for their turn, leave the rest in the socket
+            }
+            grow(readBuffer.capacity() * 2);
+        }
+
+        return channel.read(readBuffer) >= 0;
+    }
+
+    // line or frame longer than the buffer, make room for it
+    private void grow(int capacity) throws IOException {
+        if(readBuffer.capacity() >= MAX_READ_BUFFER) {
+            throw new IOException("frame too long");
+        }
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(capacity, MAX_READ_BUFFER));
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+
+    // returns the next complete line (text line or frame) received, null if none
+    public String nextLine() throws IOException {
+        readBuffer.flip();
+
+        String line;
+        framed = readBuffer.hasRemaining() && ChatFrame.isType(readBuffer.get(readBuffer.position()));
+        if(framed) {
+            line = nextFrame();
+        }
+        else {
+            line = nextTextLine();
+        }
+
+        readBuffer.compact(); // back to filling
+        return line;
+    }
+
+    private String nextTextLine() throws IOException {
+        for(int i = readBuffer.position(); i < readBuffer.limit(); ++i) {
+            if(readBuffer.get(i) == '\n') {
+                int end = (i > readBuffer.position() && readBuffer.get(i - 1) == '\r') ? i - 1 : i;
+                String line = new String(readBuffer.array(), readBuffer.position(), end - readBuffer.position(), StandardCharsets.UTF_8);
+                readBuffer.position(i + 1);
+                return line;
+            }
+        }
+
+        if(readBuffer.remaining() >= MAX_LINE_LENGTH) {
+            throw new IOException("line too long");
+        }
+
+        return null;
+    }
+
+    // the size is in the header, no scanning
+    private String nextFrame() throws IOException {
+        int start = readBuffer.position();
+        if(readBuffer.remaining() < ChatFrame.HEADER_SIZE) {
+            return null;
+        }
+
+        int length = readBuffer.getInt(start + 1);
+        if(length < 0 || length > ChatFrame.MAX_LENGTH) {
+            throw new IOException("bad frame length " + length);
+        }
+
+        if(readBuffer.remaining() < ChatFrame.HEADER_SIZE + length) {
+            // make room for the whole frame
+            if(readBuffer.capacity() < ChatFrame.HEADER_SIZE + length) {
+                readBuffer.compact();
+                grow(ChatFrame.HEADER_SIZE + length);
+                readBuffer.flip();
+            }
+            return null;
+        }
+
+        byte type = readBuffer.get(start);
+        String payload;
+        if(ChatFrame.isCompressed(type)) {
+            payload = Compression.inflate(readBuffer.array(), start + ChatFrame.HEADER_SIZE, length, ChatFrame.MAX_LENGTH);
+        }
+        else {
+            payload = new String(readBuffer.array(), start + ChatFrame.HEADER_SIZE, length, StandardCharsets.UTF_8);
+        }
+        String line = ChatFrame.prefixOf(type) + payload;
+        readBuffer.position(start + ChatFrame.HEADER_SIZE + length);
+
+        return line;
+    }
+
+    // queues a line to be written, see flush()
+    public void send(String line) {
+        queue(binary ? SharedBuffer.encodeFrame(line, deflate) : SharedBuffer.encode(ChatFrame.toText(line)), false);
+    }
+
+    // queues a line shared with other clients
+    public void send(SharedBuffer buffer) {
+        queue(buffer.retain(), false);
+    }
+
+    // queues a broadcast line, applying the overflow policy if the queue is full
+    // returns false if the client has to be disconnected
+    public boolean offer(SharedBuffer buffer) {
+        return offer(buffer, true);
+    }
+
+    // same, a line that is not droppable is queued whatever the policy
+    public boolean offer(SharedBuffer buffer, boolean droppable) {
+        if(!droppable) {
+            if(outbound.size() >= 2 * queueCapacity) {
+                return false;
+            }
+            send(buffer);
+            return true;
+        }
+
+        if(lagging) {
+            ++missed;
+            ++dropped;
+            return true;
+        }
+
+        if(outbound.size() >= queueCapacity) {
+            switch(overflowPolicy) {
+                case DISCONNECT:
+                    return false;
+
+                case MARK_LAGGING:
+                    lagging = true;
+                    missed = 1;
+                    ++dropped;
+                    return true;
+
+                case DROP_OLDEST:
+                    if(!dropOldest()) {
+                        return false; // nothing but lines that cannot be dropped
+                    }
+                    break;
+            }
+        }
+
+        queue(buffer.retain(), true);
+        return true;
+    }
+
+    // takes over the reference to the buffer
+    private void queue(SharedBuffer buffer, boolean droppable) {
+        if(closed) {
+            buffer.release();
+            return;
+        }
+
+        outbound.add(buffer.view());
+        outboundShared.add(buffer);
+        outboundDroppable.add(droppable);
+
+        if(outbound.size() > maxDepth) {
+            maxDepth = outbound.size();
+        }
+    }
+
+    // removes the oldest broadcast line that is not being written
+    // returns false if there is none
+    private boolean dropOldest() {
+        Iterator<ByteBuffer> views = outbound.iterator();
+        Iterator<SharedBuffer> buffers = outboundShared.iterator();
+        Iterator<Boolean> droppable = outboundDroppable.iterator();
+
+        while(views.hasNext()) {
+            ByteBuffer view = views.next();
+            SharedBuffer buffer = buffers.next();
+
+            if(droppable.next() && view.position() == 0) {
+                views.remove();
+                buffers.remove();
+                droppable.remove();
+                buffer.release();
+                ++dropped;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // writes as much of the queued buffers as the socket takes
+    // all the queued buffers go in one gathering write (up to MAX_GATHER)
+    // waits for OP_WRITE if the socket is full
+    public void flush() throws IOException {
+        if(closed) {
+            return;
+        }
+
+        // keep streaming the history while the socket takes it
+        do {
+            fillHistory();
+            write();
+        } while(history != null && outbound.isEmpty());
+
+        // caught up, tell the client what it missed
+        if(lagging && outbound.size() <= queueCapacity / 2) {
+            lagging = false;
+            send("SEL*** " + missed + " messages missed, connection too slow");
+            flush();
+            return;
+        }
+
+        updateInterest();
+    }
+
+    // read unless throttled, write if something is waiting
+    private void updateInterest() {
+        if(closed) {
+            return;
+        }
+
+        key.interestOps((throttled ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    // whether the client joined the room
+    boolean inRoom(String name) {
+        for(RoomIndex.Room room : rooms) {
+            if(room.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // queues the next history lines if the queue is getting empty
+    // (only the messages of the rooms the client is in)
+    private void fillHistory() {
+        while(history != null && outbound.size() < HISTORY_BATCH) {
+            String message = history.next();
+
+            if(message == null) {
+                history = null; // done
+            }
+            else if(inRoom(history.getRoom())) {
+                send("SEL" + message);
+            }
+        }
+    }
+
+    // writes until the queue is empty or the socket is full
+    private void write() throws IOException {
+        while(!outbound.isEmpty()) {
+            int count = 0;
+            for(ByteBuffer buffer : outbound) {
+                gather[count++] = buffer;
+                if(count == MAX_GATHER) {
+                    break;
+                }
+            }
+
+            loop.bytesWritten += channel.write(gather, 0, count);
+
+            // drop what was completely written
+            while(!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+                outboundShared.poll().release();
+                outboundDroppable.poll();
+            }
+
+            boolean full = count > 0 && gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+
+            if(full) {
+                break; // socket full
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        history = null;
+        key.cancel();
+
+        // give back the buffers that will not be written
+        outbound.clear();
+        outboundDroppable.clear();
+        while(!outboundShared.isEmpty()) {
+            outboundShared.poll().release();
+        }
+
+        try {
+            channel.close();
+        }
+        catch(IOException e) {}
+    }
+}
@@ -0,0 +1,1132 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Selector driven chat server, one of the loops of a ChatHub.
+ * Reads and writes are handled when the sockets are ready, so a message is
+ * relayed in the same pass it is received, and the thread sleeps in
+ * select() when nothing happens.
+ *
+ * Each loop runs on its own thread and owns the clients the hub gave it.
+ * The loop of the sender appends a message to the hub's MessageRing, which
+ * numbers it and adds it to the broadcast queue of every loop, and wakes up
+ * the other loops (Selector.wakeup()).  Every loop sends what is in its
+ * queue to its own clients, so everyone gets the messages in the same order
+ * and none is lost when a loop is slow.  A private
+ * message goes to the loop of its target through its inbox (a lock free
+ * queue).  Nothing else is shared between the loops but the hub's name
+ * index and ChatLog.
+ *
+ * Speaks the same POL/ACK/NAC/SEL protocol as the loop in ChatServer: each
+ * client is polled POLL_INTERVAL_MS after its last reply.
+ *
+ * Clients can ask for push mode after sending their name:
+ *     client: CAPpush        server: CAPpush
+ * A push client is not polled, it sends MSG<message> whenever it wants and
+ * the message is relayed right away.  Features the server does not know are
+ * left out of the CAP reply, so the client knows what it can use.
+ *
+ * With the "multi" feature, one ACK can carry several messages separated by
+ * MESSAGE_SEPARATOR, so a client that typed a burst empties it in one poll:
+ *     ACKjon says: hi<RS>jon says: again
+ *
+ * With a ChatLog (see setLog()) every message is written to disk, and a
+ * client can ask for the history:
+ *     HIS<n>      the last n messages
+ *     HSN<seq>    the messages since seq (included)
+ * The history is sent as SEL lines, read from the log as the client takes
+ * them, only the messages of the rooms the client is in (as for RSM).
+ *
+ * With a SearchIndex, a client can look for the messages holding words:
+ *     SRC<words>
+ * The last SEARCH_RESULTS messages holding all the words, in the rooms the
+ * client is in, are sent as SEL*** #<seq> <text> lines, oldest first, then
+ * a line with their number.
+ * The text comes from the MessageRing, or the ChatLog for older messages.
+ *
+ * Clients talk in rooms.  Everyone joins DEFAULT_ROOM with their name, and
+ * messages (ACK, MSG) go to the room the client joined last:
+ *     JON<room>           join a room (and talk in it)
+ *     LEV<room>           leave a room
+ *     PRV<name> <text>    send text to one client only
+ * Messages of other rooms than DEFAULT_ROOM are sent as SEL[room] <text>.
+ * A message is only written to the members of its room (see RoomIndex),
+ * each loop keeps the rooms of its own clients.
+ *
+ * With "deflate" as well as "binary", the large messages are compressed
+ * (see Compression), once per loop like the other encodings.
+ *
+ * With the "seq" feature, messages are sent with their sequence number:
+ *     SEL#<seq> <text>
+ * and a client that lost its connection can connect again and ask for what
+ * it missed, giving the last number it got and the rooms it was in:
+ *     RSM<seq> [<room>...]
+ * It is put back in these rooms without a "joined" message, and gets the
+ * messages of these rooms since seq from the MessageRing.  The "joined"
+ * message of a new client is only posted JOIN_GRACE_MS after its name, so
+ * a RSM sent right after the name (and CAP) can cancel it.
+ *
+ * With a ChatFederation, the messages posted here are also sent to the
+ * other nodes (FWD), and the ones relayed by the other nodes are delivered
+ * to the clients here.  The links to the other nodes are connections of
+ * the loops like the clients, they start with a FED frame instead of a
+ * name (a text line), so no user name can be taken for a link.
+ *
+ * With the "binary" feature, the lines are sent as length prefixed frames
+ * after the CAP reply (see ChatFrame), and messages can hold new lines.
+ * Text clients get such a message as several SEL lines.
+ *
+ * Lines received are handled LINES_PER_TURN at a time per client, in turn,
+ * so a client sending a lot cannot fill a pass by itself (the rest of its
+ * lines wait for its next turn, see backlog).  With a rate limit (see
+ * setRateLimit()), a client that used up its TokenBucket is not read until
+ * it has tokens again.  Every request that makes the server write or read
+ * the log takes tokens: one for a message, JON, LEV, PRV or SRC, and for
+ * HIS, HSN and RSM one plus one per HISTORY_PER_TOKEN messages sent back.
+ *
+ * Each client has a bounded queue of lines waiting to be written, a client
+ * that stops reading cannot hold up the others (see setOutputQueue()).
+ */
+public class ChatEventLoop {
+
+    private static final long POLL_INTERVAL_MS = 50;
+    private static final int LINES_PER_TURN = 16; // handled for a client before the next one
+    private static final long JOIN_GRACE_MS = 250; // before "joined" is posted, see RSM
+    private static final int SEARCH_RESULTS = 20; // messages sent for a SRC
+    private static final int SEARCH_SCAN_FACTOR = 8; // SEARCH_RESULTS times as many matches are looked at, for the rooms
+    private static final int HISTORY_PER_TOKEN = 16; // messages sent back for HIS, HSN or RSM per token
+    private static final long STATS_INTERVAL_MS = 10000; // how often the queue depths are displayed
+    private static final long METRICS_INTERVAL_MS = 1000; // how often the queue depths are published
+
+    public static final String FEATURE_PUSH = "push";
+    public static final String FEATURE_MULTI = "multi";
+    public static final String FEATURE_BINARY = "binary";
+    public static final String FEATURE_SEQ = "seq";
+    public static final String FEATURE_DEFLATE = "deflate";
+    public static final String DEFAULT_ROOM = "lobby";
+    public static final char MESSAGE_SEPARATOR = '\u001E'; // ASCII record separator
+
+    private static final SharedBuffer POL = SharedBuffer.constant("POL");
+    private static final SharedBuffer POL_FRAME = SharedBuffer.constantFrame("POL");
+
+    // connection given by the hub or the federation
+    private static class Adoption {
+        SocketChannel channel;
+        ChatFederation.Peer peer; // link opened to another node, null for a client
+
+        Adoption(SocketChannel channel, ChatFederation.Peer peer) {
+            this.channel = channel;
+            this.peer = peer;
+        }
+    }
+
+    // private message, or line for a link, from another loop
+    private static class Delivery {
+        ChatConnection target;
+        String line;
+
+        Delivery(ChatConnection target, String line) {
+            this.target = target;
+            this.line = line;
+        }
+    }
+
+    // line being sent to the clients of this loop, encoded at most once
+    // for each kind of client (text or frames, compressed or not, with or
+    // without the sequence number) when a client needs it
+    private static class Outgoing {
+        String line;
+        long seq; // -1 if not a numbered message (not dropped when a queue is full)
+        SharedBuffer[] encoded = new SharedBuffer[8]; // see encodedFor()
+
+        Outgoing(String line, long seq) {
+            this.line = line;
+            this.seq = seq;
+        }
+
+        SharedBuffer encodedFor(ChatConnection connection) {
+            boolean numbered = seq >= 0 && connection.sequenced;
+            boolean deflate = connection.binary && connection.deflate;
+            int kind = (connection.binary ? 1 : 0) + (numbered ? 2 : 0) + (deflate ? 4 : 0);
+
+            if(encoded[kind] == null) {
+                String sent = numbered ? numbered(seq, line.substring(3)) : line;
+                encoded[kind] = connection.binary ? SharedBuffer.encodeFrame(sent, deflate) : SharedBuffer.encode(ChatFrame.toText(sent));
+            }
+            return encoded[kind];
+        }
+
+        void release() {
+            for(SharedBuffer buffer : encoded) {
+                if(buffer != null) {
+                    buffer.release();
+                }
+            }
+        }
+    }
+
+    private final ChatHub hub;
+    private final int index; // in the hub
+    private Selector selector;
+
+    // filled by the other threads
+    private ConcurrentLinkedQueue<Adoption> adopted = new ConcurrentLinkedQueue<Adoption>();
+    private ConcurrentLinkedQueue<Delivery> inbox = new ConcurrentLinkedQueue<Delivery>();
+    private ConcurrentLinkedQueue<MessageRing.Entry> broadcasts = new ConcurrentLinkedQueue<MessageRing.Entry>(); // filled by the ring
+    private AtomicBoolean wakeupPending = new AtomicBoolean(false); // one wakeup() per pass is enough
+
+    private ClientRegistry<ChatConnection> connections = new ClientRegistry<ChatConnection>();
+
+    // clients waiting for their next POL, in the order it is due
+    // (same interval for everyone, so the order of the replies)
+    // closed clients are skipped when they reach the head
+    private ArrayDeque<ChatConnection> pollQueue = new ArrayDeque<ChatConnection>();
+
+    // clients with lines received and not handled yet, in turn order
+    private ArrayDeque<ChatConnection> backlog = new ArrayDeque<ChatConnection>();
+    // clients over their rate limit, not read
+    private ArrayList<ChatConnection> throttled = new ArrayList<ChatConnection>();
+    // clients whose "joined" is not posted yet, in the order it is due
+    private ArrayDeque<ChatConnection> pendingJoins = new ArrayDeque<ChatConnection>();
+
+    private long nextBroadcast; // sequence number of the next message from the broadcast queue
+
+    private RoomIndex rooms = new RoomIndex(); // clients of this loop only
+
+    private ArrayList<String> messages = new ArrayList<String>(); // received during this pass
+    private ArrayList<String> messageRooms = new ArrayList<String>(); // room of each message
+    private ArrayList<String> forwards = new ArrayList<String>(); // FWD line of each message, null if not federated
+    private ArrayList<ChatConnection> forwardedBy = new ArrayList<ChatConnection>(); // link it came from, null if posted here
+    private ArrayList<ChatConnection> dirty = new ArrayList<ChatConnection>(); // have buffers to flush
+
+    private int queueCapacity = ChatConnection.DEFAULT_QUEUE_CAPACITY;
+    private ChatConnection.OverflowPolicy overflowPolicy = ChatConnection.OverflowPolicy.DROP_OLDEST;
+    private double ratePerSecond = 0; // no limit if 0
+    private int rateBurst = 0;
+    private boolean verbose = false; // every message is displayed
+    private long nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+    private long nextMetrics = System.currentTimeMillis() + METRICS_INTERVAL_MS;
+
+    // counted during the pass, added to the metrics at the end
+    private long delivered = 0;
+    long bytesWritten = 0; // by the connections of this loop
+
+    public ChatEventLoop(ChatHub hub, int index) throws IOException {
+        this.hub = hub;
+        this.index = index;
+        selector = Selector.open();
+        hub.ring.addReader(broadcasts);
+    }
+
+    // size of each client's queue and what to do when it is full
+    // applies to clients accepted after the call
+    void setOutputQueue(int capacity, ChatConnection.OverflowPolicy policy) {
+        queueCapacity = capacity;
+        overflowPolicy = policy;
+    }
+
+    // messages per second each client can send, and how many at once
+    // applies to clients accepted after the call
+    void setRateLimit(double perSecond, int burst) {
+        ratePerSecond = perSecond;
+        rateBurst = burst;
+    }
+
+    // displays every message relayed (the counters of ChatServerMetrics tell
+    // how many there are without it)
+    void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    // gives a new client, or a link opened to another node, to this loop (any thread)
+    public void adopt(SocketChannel channel, ChatFederation.Peer peer) {
+        adopted.add(new Adoption(channel, peer));
+        wakeup();
+    }
+
+    // gives a line for one of the connections of this loop (any thread)
+    void handoff(ChatConnection target, String line) {
+        inbox.add(new Delivery(target, line));
+        wakeup();
+    }
+
+    private void wakeup() {
+        if(wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    public void run() throws IOException {
+        nextBroadcast = hub.ring.head();
+        while(loop());
+    }
+
+    private boolean loop() throws IOException {
+        if(backlog.isEmpty()) {
+            selector.select(timeUntilNextEvent());
+        }
+        else {
+            selector.selectNow(); // lines left to handle
+        }
+
+        // everything handed over before this is in the queues
+        wakeupPending.set(false);
+
+        long start = System.nanoTime();
+
+        acceptNewConnections();
+
+        long accepted = System.nanoTime();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while(keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if(!key.isValid()) {
+                continue;
+            }
+
+            ChatConnection connection = (ChatConnection) key.attachment();
+
+            try {
+                if(key.isReadable()) {
+                    if(connection.read()) {
+                        addToBacklog(connection);
+                    }
+                    else {
+                        remove(connection);
+                        continue;
+                    }
+                }
+
+                if(key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            }
+            catch(IOException e) {
+                // client is dead (gone)
+                remove(connection);
+            }
+        }
+
+        resumeThrottled();
+        checkResponses();
+
+        receiveDeliveries();
+        receiveBroadcasts();
+
+        long checked = System.nanoTime();
+
+        pollForMessages();
+
+        long polled = System.nanoTime();
+
+        distributeMessages();
+
+        updateMetrics(start, accepted, checked, polled, System.nanoTime());
+
+        if(System.currentTimeMillis() >= nextStats) {
+            displayQueueStats();
+            nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+        }
+
+        return true;
+    }
+
+    // registers the clients given by the hub
+    private void acceptNewConnections() throws IOException {
+        Adoption adoption;
+
+        while((adoption = adopted.poll()) != null) {
+            SocketChannel channel = adoption.channel;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            ChatConnection connection = new ChatConnection(channel, key);
+            connection.loop = this;
+            connection.queueCapacity = queueCapacity;
+            connection.overflowPolicy = overflowPolicy;
+            if(ratePerSecond > 0) {
+                connection.limit = new TokenBucket(ratePerSecond, rateBurst);
+            }
+            key.attach(connection);
+
+            connection.id = connections.add(connection);
+            hub.metrics.increment(index, ChatServerMetrics.CONNECTED);
+
+            // introduce this node, the other one answers with its FED
+            if(adoption.peer != null) {
+                connection.peer = adoption.peer;
+                sendNode(connection);
+            }
+        }
+    }
+
+    // private messages and link lines from the other loops
+    private void receiveDeliveries() {
+        Delivery delivery;
+
+        while((delivery = inbox.poll()) != null) {
+            Outgoing line = new Outgoing(delivery.line, -1);
+            deliver(delivery.target, line);
+            line.release();
+        }
+    }
+
+    // messages appended to the ring (by any loop) since the last call
+    private void receiveBroadcasts() {
+        MessageRing.Entry entry;
+
+        while((entry = broadcasts.poll()) != null) {
+            Outgoing line = new Outgoing("SEL" + entry.message, entry.seq);
+            deliver(rooms.get(entry.room), line);
+            line.release();
+            nextBroadcast = entry.seq + 1;
+        }
+    }
+
+    // to the members of the room on this loop
+    private void deliver(RoomIndex.Room room, Outgoing line) {
+        if(room == null) {
+            return; // no member here
+        }
+
+        // backwards as removing a client takes it out of the room
+        for(int i = room.size() - 1; i >= 0; --i) {
+            deliver(connections.get(room.memberAt(i)), line);
+        }
+    }
+
+    private void deliver(ChatConnection connection, Outgoing line) {
+        if(connection.closed) {
+            return;
+        }
+
+        if(connection.offer(line.encodedFor(connection), line.seq >= 0)) {
+            markDirty(connection);
+            ++delivered;
+        }
+        else {
+            System.out.println("Queue of client " + connection.getId() + " (" + connection.name + ") full - disconnecting");
+            remove(connection);
+        }
+    }
+
+    // sends POL to the clients that are due
+    private void pollForMessages() {
+        long now = System.currentTimeMillis();
+
+        while(!pollQueue.isEmpty() && pollQueue.peek().nextPoll <= now) {
+            ChatConnection connection = pollQueue.poll();
+
+            if(connection.closed || connection.push) {
+                continue; // push clients are not polled
+            }
+
+            connection.send(connection.binary ? POL_FRAME : POL);
+            connection.awaitingReply = true;
+            markDirty(connection);
+        }
+    }
+
+    private void addToBacklog(ChatConnection connection) {
+        if(!connection.inBacklog) {
+            connection.inBacklog = true;
+            backlog.add(connection);
+        }
+    }
+
+    // one turn for each client with lines received, the ones with lines
+    // left get another turn in the next pass
+    private void checkResponses() {
+        for(int turns = backlog.size(); turns > 0; --turns) {
+            ChatConnection connection = backlog.poll();
+            connection.inBacklog = false;
+
+            if(connection.closed) {
+                continue;
+            }
+
+            try {
+                if(checkResponses(connection)) {
+                    addToBacklog(connection);
+                }
+            }
+            catch(IOException e) {
+                remove(connection);
+            }
+        }
+    }
+
+    // handles up to LINES_PER_TURN lines of the client
+    // returns true if it has lines left
+    private boolean checkResponses(ChatConnection connection) throws IOException {
+        for(int lines = 0; lines < LINES_PER_TURN; ++lines) {
+            if(connection.throttled || connection.closed) {
+                return false; // back in the backlog when resumed
+            }
+
+            String message = connection.nextLine();
+            if(message == null) {
+                return false;
+            }
+
+            // longer than what can be relayed (see ChatFrame)
+            if(!connection.link && !ChatFrame.fits(message, ChatFrame.MAX_MESSAGE_LENGTH)) {
+                notice(connection, "line too long, " + ChatFrame.MAX_MESSAGE_LENGTH + " bytes at most");
+            }
+
+            // a node instead of a client
+            else if(connection.name == null && connection.framed && message.startsWith("FED")) {
+                acceptLink(connection, message);
+            }
+
+            else if(connection.link) {
+                if(message.startsWith("FWD")) {
+                    relay(connection, message);
+                }
+                else if(message.startsWith("FSN")) {
+                    hub.federation.replay(connection, message);
+                    markDirty(connection);
+                }
+                else {
+                    System.out.println("Unknown message from node " + connection.name + ": >" + message + "<");
+                }
+            }
+
+            // expect name to be received first
+            else if(connection.name == null) {
+                if(message.length() == 0 || message.length() > ChatFrame.MAX_NAME_LENGTH) {
+                    System.out.println("Bad name (" + connection.getId() + "), " + message.length() + " characters");
+                    remove(connection);
+                    return false;
+                }
+                connection.name = message;
+                hub.names.put(message, connection);
+                joinRoom(connection, DEFAULT_ROOM, false);
+                connection.joinedAt = System.currentTimeMillis() + JOIN_GRACE_MS;
+                pendingJoins.add(connection);
+                schedulePoll(connection, System.currentTimeMillis());
+            }
+
+            else if(message.startsWith("RSM")) {
+                resume(connection, message.substring(3));
+            }
+
+            else if(message.startsWith("ACK")) {
+                if(connection.multi) {
+                    addMessages(connection, message.substring(3));
+                }
+                else {
+                    post(connection, message.substring(3));
+                }
+                schedulePoll(connection, System.currentTimeMillis() + POLL_INTERVAL_MS);
+            }
+
+            else if(message.startsWith("NAC")) {
+                schedulePoll(connection, System.currentTimeMillis() + POLL_INTERVAL_MS);
+            }
+
+            else if(message.startsWith("MSG") && connection.push) {
+                post(connection, message.substring(3));
+            }
+
+            else if(message.startsWith("JON")) {
+                spend(connection, 1);
+                joinRoom(connection, message.substring(3).trim(), true);
+            }
+
+            else if(message.startsWith("LEV")) {
+                spend(connection, 1);
+                leaveRoom(connection, message.substring(3).trim(), true);
+            }
+
+            else if(message.startsWith("PRV")) {
+                spend(connection, 1);
+                sendPrivate(connection, message.substring(3));
+            }
+
+            else if(message.startsWith("CAP")) {
+                negotiate(connection, message.substring(3));
+            }
+
+            else if(message.startsWith("HIS") || message.startsWith("HSN")) {
+                sendHistory(connection, message);
+            }
+
+            else if(message.startsWith("SRC")) {
+                search(connection, message.substring(3).trim());
+            }
+
+            else {
+                System.out.println("Unknown message (" + connection.getId() + "): >" + message + "<");
+            }
+        }
+
+        return true;
+    }
+
+    // takes count tokens for a request of the client, stops reading it if it has none left
+    private void spend(ChatConnection connection, int count) {
+        if(connection.limit == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        connection.limit.take(now, count);
+
+        if(!connection.limit.available(now) && !connection.throttled) {
+            connection.throttle();
+            throttled.add(connection);
+            hub.metrics.increment(index, ChatServerMetrics.THROTTLED);
+        }
+    }
+
+    // reads the throttled clients again once they have tokens
+    private void resumeThrottled() {
+        if(throttled.isEmpty()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        for(int i = throttled.size() - 1; i >= 0; --i) {
+            ChatConnection connection = throttled.get(i);
+
+            if(connection.closed || connection.limit.available(now)) {
+                throttled.set(i, throttled.get(throttled.size() - 1));
+                throttled.remove(throttled.size() - 1);
+
+                if(!connection.closed) {
+                    connection.resume();
+                    addToBacklog(connection); // lines may have been read already
+                }
+            }
+        }
+    }
+
+    // splits the messages of a multi ACK
+    private void addMessages(ChatConnection connection, String batch) {
+        int start = 0;
+
+        for(int end = batch.indexOf(MESSAGE_SEPARATOR); end != -1; end = batch.indexOf(MESSAGE_SEPARATOR, start)) {
+            post(connection, batch.substring(start, end));
+            start = end + 1;
+        }
+
+        post(connection, batch.substring(start));
+    }
+
+    // message to the room the client talks in
+    private void post(ChatConnection connection, String message) {
+        spend(connection, 1);
+
+        if(connection.room == null) {
+            notice(connection, "join a room to talk");
+            return;
+        }
+
+        post(connection.room, message);
+    }
+
+    private void post(RoomIndex.Room room, String message) {
+        ChatFederation federation = hub.federation;
+        post(room.getName(), message, federation == null ? null : federation.forward(index, room.getName(), message), null);
+    }
+
+    private void post(String room, String message, String forward, ChatConnection forwardedBy) {
+        messages.add(room.equals(DEFAULT_ROOM) ? message : "[" + room + "] " + message);
+        messageRooms.add(room);
+        forwards.add(forward);
+        this.forwardedBy.add(forwardedBy);
+    }
+
+    // FED frame: the connection is a link to another node
+    private void acceptLink(ChatConnection connection, String line) {
+        ChatFederation federation = hub.federation;
+
+        if(federation == null || !federation.accept(connection, line)) {
+            System.out.println("Refused link from " + connection.getRemoteAddress() + " (" + connection.getId() + ")");
+            remove(connection);
+            return;
+        }
+
+        connection.link = true;
+        // a slow node is dropped (and linked again) rather than missing messages
+        connection.overflowPolicy = ChatConnection.OverflowPolicy.DISCONNECT;
+        if(connection.peer == null) {
+            sendNode(connection); // opened by the other node, answer
+        }
+
+        // what was seen from every origin, the other node sends what is missing
+        connection.send(federation.seen());
+        markDirty(connection);
+
+        federation.linkUp(connection);
+    }
+
+    private void sendNode(ChatConnection connection) {
+        connection.binary = true; // frames from the FED line on, messages can hold new lines
+        connection.deflate = true;
+        connection.send(hub.federation.hello());
+        markDirty(connection);
+    }
+
+    // FWD line from another node, delivered and sent on unless already seen
+    private void relay(ChatConnection link, String line) {
+        String[] message = hub.federation.receive(line);
+
+        if(message != null) {
+            post(message[0], message[1], line, link);
+        }
+    }
+
+    private void joinRoom(ChatConnection connection, String name, boolean announce) {
+        if(name.length() == 0) {
+            return;
+        }
+        if(name.length() > ChatFrame.MAX_NAME_LENGTH) {
+            notice(connection, "room name too long, " + ChatFrame.MAX_NAME_LENGTH + " characters at most");
+            return;
+        }
+
+        RoomIndex.Room room = rooms.join(name, connection.id);
+        if(room != null) {
+            connection.rooms.add(room);
+            if(announce) {
+                post(room, connection.name + " joined");
+            }
+        }
+        else {
+            room = rooms.get(name); // already a member, talk there
+        }
+
+        connection.room = room;
+    }
+
+    private void leaveRoom(ChatConnection connection, String name, boolean announce) {
+        RoomIndex.Room room = rooms.get(name);
+
+        if(room == null || !rooms.leave(room, connection.id)) {
+            if(announce) {
+                notice(connection, "not in " + name);
+            }
+            return;
+        }
+
+        connection.rooms.remove(room);
+        if(announce) {
+            post(room, connection.name + " left");
+        }
+
+        // back to the last room joined
+        if(connection.room == room) {
+            connection.room = connection.rooms.isEmpty() ? null : connection.rooms.get(connection.rooms.size() - 1);
+        }
+    }
+
+    // posts the "joined" of the new clients that did not resume
+    private void announceJoins() {
+        long now = System.currentTimeMillis();
+
+        while(!pendingJoins.isEmpty() && pendingJoins.peek().joinedAt <= now) {
+            ChatConnection connection = pendingJoins.poll();
+            RoomIndex.Room lobby = rooms.get(DEFAULT_ROOM);
+
+            if(!connection.closed && connection.joinedAt != 0 && lobby != null && connection.rooms.contains(lobby)) {
+                post(lobby, connection.name + " joined");
+            }
+            connection.joinedAt = 0;
+        }
+    }
+
+    // RSM<seq> [<room>...]: back in the rooms, and the messages missed since seq
+    private void resume(ChatConnection connection, String request) {
+        String[] words = request.trim().split(" +");
+        long last;
+        try {
+            last = Long.parseLong(words[0]);
+        }
+        catch(NumberFormatException e) {
+            System.out.println("Bad resume request (" + connection.getId() + "): >" + request + "<");
+            return;
+        }
+
+        connection.joinedAt = 0; // not new, no "joined"
+
+        if(words.length > 1) {
+            ArrayList<String> names = new ArrayList<String>();
+            for(int i = 1; i < words.length; ++i) {
+                names.add(words[i]);
+                joinRoom(connection, words[i], false);
+            }
+            if(!names.contains(DEFAULT_ROOM)) {
+                leaveRoom(connection, DEFAULT_ROOM, false);
+            }
+            connection.room = rooms.get(words[words.length - 1]); // talks where it talked last
+        }
+
+        // the messages before nextBroadcast were sent to the clients of this
+        // loop already, the ones after come with the next receiveBroadcasts()
+        MessageRing ring = hub.ring;
+        long from = last + 1;
+        if(from < ring.oldest()) {
+            notice(connection, (ring.oldest() - from) + " messages no longer available");
+            from = ring.oldest();
+        }
+
+        int sent = 0;
+        for(long seq = from; seq < nextBroadcast; ++seq) {
+            MessageRing.Entry entry = ring.read(seq);
+            RoomIndex.Room room = entry == null ? null : rooms.get(entry.room);
+
+            if(room != null && connection.rooms.contains(room)) {
+                connection.send(connection.sequenced ? numbered(entry.seq, entry.message) : "SEL" + entry.message);
+                ++sent;
+            }
+        }
+
+        spend(connection, historyCost(sent));
+        markDirty(connection);
+    }
+
+    // tokens taken for sending back count messages of the history
+    private static int historyCost(long count) {
+        return (int) Math.min(Integer.MAX_VALUE, 1 + count / HISTORY_PER_TOKEN);
+    }
+
+    // SEL line of a message with its sequence number
+    private static String numbered(long seq, String message) {
+        return "SEL#" + seq + " " + message;
+    }
+
+    // PRV<name> <text>
+    private void sendPrivate(ChatConnection connection, String request) {
+        int space = request.indexOf(' ');
+        ChatConnection target = space == -1 ? null : hub.names.get(request.substring(0, space));
+
+        if(target == null) {
+            notice(connection, "no such user: " + (space == -1 ? request : request.substring(0, space)));
+            return;
+        }
+
+        String message = "SEL(private) " + request.substring(space + 1);
+        if(target.loop == this) {
+            Outgoing line = new Outgoing(message, -1);
+            deliver(target, line);
+            line.release();
+        }
+        else {
+            target.loop.handoff(target, message);
+        }
+    }
+
+    // line from the server to one client
+    private void notice(ChatConnection connection, String text) {
+        connection.send("SEL*** " + text);
+        markDirty(connection);
+    }
+
+    // starts streaming the history asked by HIS<n> or HSN<seq>
+    private void sendHistory(ChatConnection connection, String request) throws IOException {
+        ChatLog log = hub.log;
+        if(log == null) {
+            return;
+        }
+
+        long value;
+        try {
+            value = Long.parseLong(request.substring(3).trim());
+        }
+        catch(NumberFormatException e) {
+            System.out.println("Bad history request (" + connection.getId() + "): >" + request + "<");
+            return;
+        }
+
+        connection.history = request.startsWith("HIS") ? log.readLast(value) : log.read(value);
+        spend(connection, historyCost(connection.history.remaining()));
+        connection.flush();
+    }
+
+    // sends the last messages holding all the words of query
+    private void search(ChatConnection connection, String query) {
+        spend(connection, 1);
+
+        SearchIndex search = hub.search;
+        if(search == null) {
+            notice(connection, "search is not available");
+            return;
+        }
+
+        // the most recent first, only the messages of the rooms the client
+        // is in (as for RSM), so more are asked for than are sent
+        long[] seqs = search.search(query, SEARCH_RESULTS * SEARCH_SCAN_FACTOR);
+        ChatLog log = hub.log;
+        String[] found = new String[SEARCH_RESULTS];
+        int sent = 0;
+
+        for(int i = 0; i < seqs.length && sent < found.length; ++i) {
+            MessageRing.Entry entry = hub.ring.read(seqs[i]);
+            String text = entry != null ? entry.message : null;
+            String room = entry != null ? entry.room : null;
+
+            if(text == null && log != null) {
+                ChatLog.Cursor cursor = log.read(seqs[i]);
+                if(cursor.getSeq() == seqs[i]) {
+                    text = cursor.next();
+                    room = cursor.getRoom();
+                }
+            }
+
+            if(text != null && connection.inRoom(room)) {
+                found[sent++] = "#" + seqs[i] + " " + text;
+            }
+        }
+
+        for(int i = sent - 1; i >= 0; --i) {
+            notice(connection, found[i]);
+        }
+
+        notice(connection, sent + (sent == 1 ? " message" : " messages") + " found for >" + query + "<");
+    }
+
+    private void distributeMessages() throws IOException {
+        ChatLog log = hub.log;
+        hub.metrics.add(index, ChatServerMetrics.MESSAGES_IN, messages.size());
+
+        announceJoins();
+
+        for(int msg = 0; msg < messages.size(); ++msg) {
+            if(verbose) {
+                System.out.println(messages.get(msg));
+            }
+
+            // numbered, and written to the log if there is one
+            hub.ring.append(messageRooms.get(msg), messages.get(msg), forwards.get(msg));
+
+            if(forwards.get(msg) != null) {
+                forward(forwards.get(msg), forwardedBy.get(msg));
+            }
+        }
+
+        // every loop sends the new messages to the members of their room
+        // (each loop encodes a message once, all its clients share the bytes)
+        if(!messages.isEmpty()) {
+            for(ChatEventLoop loop : hub.loops) {
+                if(loop != this) {
+                    loop.wakeup();
+                }
+            }
+            receiveBroadcasts();
+        }
+
+        messages.clear();
+        messageRooms.clear();
+        forwards.clear();
+        forwardedBy.clear();
+
+        // all the messages of the pass go to disk together
+        if(log != null) {
+            log.commit();
+        }
+
+        // write everything queued during this pass
+        for(ChatConnection connection : dirty) {
+            connection.dirty = false;
+
+            try {
+                connection.flush();
+            }
+            catch(IOException e) {
+                remove(connection);
+            }
+        }
+
+        dirty.clear();
+    }
+
+    // to every other node linked to this one but the one it came from
+    private void forward(String line, ChatConnection forwardedBy) {
+        Outgoing forward = new Outgoing(line, -1);
+
+        for(ChatConnection link : hub.federation.links) {
+            if(link == forwardedBy) {
+                continue;
+            }
+
+            if(link.loop == this) {
+                deliver(link, forward);
+            }
+            else {
+                link.loop.handoff(link, line);
+            }
+        }
+
+        forward.release();
+    }
+
+    // replies with the requested features the server supports
+    private void negotiate(ChatConnection connection, String requested) {
+        String accepted = "";
+
+        for(String feature : requested.trim().split(" +")) {
+            if(feature.equals(FEATURE_PUSH)) {
+                connection.push = true;
+                accepted += " " + feature;
+            }
+            else if(feature.equals(FEATURE_MULTI)) {
+                connection.multi = true;
+                accepted += " " + feature;
+            }
+            else if(feature.equals(FEATURE_BINARY)) {
+                accepted += " " + feature;
+            }
+            else if(feature.equals(FEATURE_DEFLATE) && (" " + requested + " ").contains(" " + FEATURE_BINARY + " ")) {
+                accepted += " " + feature;
+            }
+            else if(feature.equals(FEATURE_SEQ)) {
+                connection.sequenced = true;
+                accepted += " " + feature;
+            }
+        }
+
+        // the reply is the last text line
+        connection.send("CAP" + accepted.trim());
+        connection.binary = (" " + accepted + " ").contains(" " + FEATURE_BINARY + " ");
+        connection.deflate = (" " + accepted + " ").contains(" " + FEATURE_DEFLATE + " ");
+        markDirty(connection);
+    }
+
+    private void schedulePoll(ChatConnection connection, long when) {
+        if(connection.awaitingReply || connection.nextPoll == 0) {
+            connection.awaitingReply = false;
+            connection.nextPoll = when;
+            pollQueue.add(connection);
+        }
+    }
+
+    private void markDirty(ChatConnection connection) {
+        if(!connection.dirty) {
+            connection.dirty = true;
+            dirty.add(connection);
+        }
+    }
+
+    // phase times of the pass, and what was counted during the pass
+    private void updateMetrics(long start, long accepted, long checked, long polled, long distributed) {
+        ChatServerMetrics metrics = hub.metrics;
+
+        metrics.increment(index, ChatServerMetrics.PASSES);
+        metrics.add(index, ChatServerMetrics.ACCEPT_NS, accepted - start);
+        metrics.add(index, ChatServerMetrics.CHECK_RESPONSES_NS, checked - accepted);
+        metrics.add(index, ChatServerMetrics.POLL_NS, polled - checked);
+        metrics.add(index, ChatServerMetrics.DISTRIBUTE_NS, distributed - polled);
+
+        if(delivered > 0) {
+            metrics.add(index, ChatServerMetrics.MESSAGES_OUT, delivered);
+            delivered = 0;
+        }
+        if(bytesWritten > 0) {
+            metrics.add(index, ChatServerMetrics.BYTES_WRITTEN, bytesWritten);
+            bytesWritten = 0;
+        }
+
+        if(System.currentTimeMillis() >= nextMetrics) {
+            publishQueueDepths();
+            nextMetrics = System.currentTimeMillis() + METRICS_INTERVAL_MS;
+        }
+    }
+
+    // clients with lines waiting, for the metrics
+    private void publishQueueDepths() {
+        ArrayList<String> depths = new ArrayList<String>();
+        long total = 0;
+        long max = 0;
+
+        for(int i = 0; i < connections.size(); ++i) {
+            ChatConnection connection = connections.get(connections.idAt(i));
+            int depth = connection.getQueueDepth();
+
+            if(depth > 0) {
+                depths.add(connection.name + ": " + depth);
+                total += depth;
+                max = Math.max(max, depth);
+            }
+        }
+
+        hub.metrics.publishQueueDepths(index, depths.toArray(new String[depths.size()]), total, max);
+    }
+
+    private long timeUntilNextEvent() {
+        if(connections.size() == 0) {
+            return 0; // block until something happens
+        }
+
+        long next = Math.min(nextStats, nextMetrics);
+        if(!pollQueue.isEmpty()) {
+            next = Math.min(next, pollQueue.peek().nextPoll);
+        }
+        if(!pendingJoins.isEmpty()) {
+            next = Math.min(next, pendingJoins.peek().joinedAt);
+        }
+
+        // the first throttled client to get a token
+        long now = System.nanoTime();
+        for(ChatConnection connection : throttled) {
+            next = Math.min(next, System.currentTimeMillis() + (connection.closed ? 0 : connection.limit.nanosUntilAvailable(now) / 1000000 + 1));
+        }
+
+        return Math.max(1, next - System.currentTimeMillis());
+    }
+
+    // displays the clients with lines waiting or lost
+    private void displayQueueStats() {
+        for(int i = 0; i < connections.size(); ++i) {
+            ChatConnection connection = connections.get(connections.idAt(i));
+
+            if(connection.getQueueDepth() > 0 || connection.getDropped() > 0 || connection.getThrottledCount() > 0) {
+                System.out.println("Loop " + index + ", client " + connection.getId() + " (" + connection.name + "): queue depth=" + connection.getQueueDepth() +
+                    " max=" + connection.getMaxQueueDepth() + " dropped=" + connection.getDropped() +
+                    (connection.isLagging() ? " lagging" : "") +
+                    (connection.getThrottledCount() > 0 ? " throttled " + connection.getThrottledCount() + " times" : ""));
+            }
+        }
+    }
+
+    private void remove(ChatConnection connection) {
+        if(!connection.closed) {
+            connection.close();
+
+            for(RoomIndex.Room room : connection.rooms) {
+                rooms.leave(room, connection.id);
+            }
+            connection.rooms.clear();
+            if(connection.name != null) {
+                hub.names.remove(connection.name, connection);
+            }
+            if(connection.link) {
+                hub.federation.linkDown(connection);
+            }
+            else if(connection.peer != null) {
+                connection.peer.connected = false; // closed before the FED answer
+            }
+
+            connections.remove(connection.id);
+            hub.metrics.add(index, ChatServerMetrics.CONNECTED, -1);
+        }
+    }
+}
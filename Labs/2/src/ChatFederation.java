@@ -0,0 +1,382 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Links between chat servers (nodes), so the clients of one chat can be
+ * spread over several processes.  A node connects to the peers given with
+ * -peer, on their client port, and both ends introduce themselves with a
+ * FED frame instead of a user name:
+ *     FED<node><US><origin><US><secret>
+ * A client sends its name as a text line, so no name is taken for a link.
+ * A link is accepted from any host giving the secret of this node (-secret),
+ * or without one, only from the hosts of the -peer nodes.
+ * A link works both ways, so two nodes only need one of them to name the other.
+ * Peer links are ChatConnections of the ChatEventLoops like the clients,
+ * using ChatFrames.
+ *
+ * Every message posted on a node is sent to all its peers as
+ *     FWD<origin><US><seq><US><room><US><message>      (US = FIELD_SEPARATOR)
+ * where origin is the loop the message was posted on (node id, start time
+ * so a restarted node starts a new sequence, and loop index) and seq counts
+ * the messages of that origin, in the order they are sent.  A node
+ * receiving a FWD delivers it to its clients and sends it on to its other
+ * peers, so messages cross any connected mesh, not only a full one.  The same message can then reach a
+ * node by several links: the (origin, seq) pairs already seen are dropped
+ * (a sliding window per origin, see Window), so each message is delivered
+ * exactly once per node and never goes around a loop of links.
+ * The window covers the last DEFAULT_WINDOW messages of an origin (see
+ * setWindow(), -window), a message arriving by a path lagging more than
+ * that behind the fastest one is dropped.  The window of an origin that
+ * sent nothing for ORIGIN_IDLE_MS (e.g. a node that restarted, which is a
+ * new origin) is forgotten.
+ *
+ * The links to the -peer nodes are (re)opened by a timer every
+ * RECONNECT_INTERVAL_MS while they are down.  Once linked, both ends send
+ * the highest seq they saw from each origin:
+ *     FSN<origin><US><seq><US><origin><US><seq>...
+ * and, if the link was lost and opened again to the same run of the other
+ * node (same origin), each sends the FWD lines of the MessageRing the other
+ * did not see: with a higher seq, or of an origin it does not know, if
+ * appended less than ORIGIN_IDLE_MS ago (older, the other may have
+ * forgotten the origin).  So the messages posted while a link was down, or
+ * lost when it was dropped for being slow, still get across.  What is
+ * gone from the ring is lost for the other node, and a node that restarts
+ * only gets the messages posted from then on: beyond that, delivery is at
+ * most once.
+ */
+public class ChatFederation {
+
+    public static final char FIELD_SEPARATOR = '\u001F';
+
+    private static final long RECONNECT_INTERVAL_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_WINDOW = 64 * 1024; // sequence numbers tracked up to the highest one
+    private static final long ORIGIN_IDLE_MS = 10 * 60 * 1000; // before the window of an origin is forgotten
+    private static final long EVICT_INTERVAL_MS = 60 * 1000; // how often the idle origins are looked for
+
+    // a node given with -peer
+    static class Peer {
+        final InetSocketAddress address;
+        volatile boolean connected = false; // cleared by the loop when the link closes
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    // sequence numbers seen from one origin: the highest one, and a bit
+    // for each of the size up to it (bit seq % size, a ring)
+    private static class Window {
+        final long[] seen;
+        final int size; // multiple of 64
+        long highest = -1;
+        long lastUsed; // System.currentTimeMillis()
+
+        Window(int size) {
+            this.size = size;
+            this.seen = new long[size / 64];
+        }
+
+        // true the first time seq is seen
+        boolean accept(long seq) {
+            if(seq > highest) {
+                // the bits of the seqs after highest are still the ones of seq - size
+                if(seq - highest >= size) {
+                    Arrays.fill(seen, 0);
+                }
+                else {
+                    for(long s = highest + 1; s < seq; ++s) {
+                        clear(s);
+                    }
+                }
+                set(seq);
+                highest = seq;
+                return true;
+            }
+
+            if(highest - seq >= size || isSet(seq)) {
+                return false; // seen, or too old to tell
+            }
+
+            set(seq);
+            return true;
+        }
+
+        private boolean isSet(long seq) {
+            int bit = (int) (seq % size);
+            return (seen[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(long seq) {
+            int bit = (int) (seq % size);
+            seen[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long seq) {
+            int bit = (int) (seq % size);
+            seen[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+
+    private final ChatHub hub;
+    private final String node;
+    private final String origin; // node and start time, followed by the loop index
+    private final AtomicLongArray nextSeq; // by loop
+
+    private ArrayList<Peer> peers = new ArrayList<Peer>(); // to connect to
+    CopyOnWriteArrayList<ChatConnection> links = new CopyOnWriteArrayList<ChatConnection>(); // open, both ways
+    private HashMap<String, Window> windows = new HashMap<String, Window>(); // by origin
+    private int windowSize = DEFAULT_WINDOW;
+    private String secret = null; // links only from the peers if null
+    private HashMap<String, String> peerOrigins = new HashMap<String, String>(); // last origin of each node linked
+    private long nextEviction = 0;
+
+    private final AtomicLong relayed = new AtomicLong(0);
+    private final AtomicLong duplicates = new AtomicLong(0);
+
+    public ChatFederation(ChatHub hub, String node) {
+        this.hub = hub;
+        this.node = node;
+        this.origin = node + "@" + System.currentTimeMillis() + "/";
+        nextSeq = new AtomicLongArray(hub.loops.length);
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    // number of sequence numbers of an origin tracked, for the new origins
+    // (rounded up to a multiple of 64)
+    public synchronized void setWindow(int size) {
+        windowSize = Math.max(64, (size + 63) / 64 * 64);
+    }
+
+    // the nodes giving secret can link to this one, from any host
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    public void addPeer(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        peers.add(new Peer(new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)))));
+    }
+
+    // opens the links to the peers, now and whenever they are down
+    public void start() {
+        if(peers.isEmpty()) {
+            return;
+        }
+
+        Timer timer = new Timer("chat federation", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                connectPeers();
+            }
+        }, 0, RECONNECT_INTERVAL_MS);
+    }
+
+    private void connectPeers() {
+        for(Peer peer : peers) {
+            if(peer.connected) {
+                continue;
+            }
+
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.socket().connect(peer.address, CONNECT_TIMEOUT_MS);
+                peer.connected = true;
+                hub.adoptPeer(channel, peer);
+            }
+            catch(IOException e) {
+                // not up yet, next time
+            }
+        }
+    }
+
+    // FED line introducing this node on a link
+    String hello() {
+        return "FED" + node + FIELD_SEPARATOR + origin + FIELD_SEPARATOR + (secret == null ? "" : secret);
+    }
+
+    // checks the FED line of a node linking to this one, and names the link after it
+    synchronized boolean accept(ChatConnection link, String line) {
+        String[] fields = line.substring(3).split(String.valueOf(FIELD_SEPARATOR), 3);
+        if(fields.length != 3 || fields[0].length() == 0 || fields[0].length() > ChatFrame.MAX_NAME_LENGTH || fields[0].equals(node)) {
+            return false;
+        }
+
+        if(link.peer == null && !(secret == null ? fromPeer(link) : MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), fields[2].getBytes(StandardCharsets.UTF_8)))) {
+            return false; // opened by a node this one does not know
+        }
+
+        link.name = fields[0];
+        link.peerOrigin = fields[1];
+        link.relinked = fields[1].equals(peerOrigins.put(fields[0], fields[1]));
+        return true;
+    }
+
+    // true if the link comes from the host of a -peer node
+    private boolean fromPeer(ChatConnection link) {
+        for(Peer peer : peers) {
+            if(peer.address.getAddress() != null && peer.address.getAddress().equals(link.getRemoteAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // FSN line: the highest seq seen from each origin
+    synchronized String seen() {
+        StringBuilder line = new StringBuilder("FSN");
+        for(String from : windows.keySet()) {
+            if(line.length() > 3) {
+                line.append(FIELD_SEPARATOR);
+            }
+            line.append(from).append(FIELD_SEPARATOR).append(windows.get(from).highest);
+        }
+        return line.toString();
+    }
+
+    // sends on link the FWD lines of the ring the other node did not see
+    // (FSN line received from it), if it was linked before
+    void replay(ChatConnection link, String line) {
+        if(!link.relinked) {
+            return; // new node, or a new run of it: only what is posted from now on
+        }
+
+        HashMap<String, Long> highest = new HashMap<String, Long>();
+        String[] fields = line.substring(3).split(String.valueOf(FIELD_SEPARATOR));
+        for(int i = 0; i + 1 < fields.length; i += 2) {
+            try {
+                highest.put(fields[i], Long.parseLong(fields[i + 1]));
+            }
+            catch(NumberFormatException e) {
+                System.out.println("Bad FSN line from " + link.name);
+                return;
+            }
+        }
+
+        MessageRing ring = hub.ring;
+        long recent = System.currentTimeMillis() - ORIGIN_IDLE_MS;
+        int sent = 0;
+
+        for(long seq = ring.oldest(); seq < ring.head(); ++seq) {
+            MessageRing.Entry entry = ring.read(seq);
+            if(entry == null || entry.forward == null) {
+                continue;
+            }
+
+            // FWD<origin><US><seq><US>...
+            int first = entry.forward.indexOf(FIELD_SEPARATOR);
+            int second = entry.forward.indexOf(FIELD_SEPARATOR, first + 1);
+            String from = entry.forward.substring(3, first);
+            if(from.startsWith(link.peerOrigin)) {
+                continue; // its own
+            }
+
+            Long seen = highest.get(from);
+            if(seen != null ? Long.parseLong(entry.forward.substring(first + 1, second)) > seen : entry.time >= recent) {
+                link.send(entry.forward);
+                ++sent;
+            }
+        }
+
+        System.out.println("Federation: " + sent + " messages sent again to " + link.name);
+    }
+
+    // FWD line of a message posted on loop of this node
+    String forward(int loop, String room, String message) {
+        return "FWD" + origin + loop + FIELD_SEPARATOR + nextSeq.getAndIncrement(loop) + FIELD_SEPARATOR + room + FIELD_SEPARATOR + message;
+    }
+
+    // fields of a FWD line received from a peer: room and message
+    // null if the message was already received (or is one of this node's)
+    String[] receive(String line) {
+        String[] fields = line.substring(3).split(String.valueOf(FIELD_SEPARATOR), 4);
+        if(fields.length != 4) {
+            System.out.println("Bad FWD line: >" + line + "<");
+            return null;
+        }
+
+        long seq;
+        try {
+            seq = Long.parseLong(fields[1]);
+        }
+        catch(NumberFormatException e) {
+            System.out.println("Bad FWD line: >" + line + "<");
+            return null;
+        }
+
+        // what a client could not send, or too long once the room and seq are added
+        if(fields[0].length() > 2 * ChatFrame.MAX_NAME_LENGTH || fields[2].length() > ChatFrame.MAX_NAME_LENGTH
+           || !ChatFrame.fits("SEL" + fields[3], ChatFrame.MAX_MESSAGE_LENGTH)) {
+            System.out.println("FWD line too long from " + fields[0]);
+            return null;
+        }
+
+        if(fields[0].startsWith(origin) || !firstTime(fields[0], seq)) {
+            duplicates.incrementAndGet();
+            return null;
+        }
+
+        relayed.incrementAndGet();
+        return new String[] { fields[2], fields[3] };
+    }
+
+    private synchronized boolean firstTime(String from, long seq) {
+        long now = System.currentTimeMillis();
+        if(now >= nextEviction) {
+            evictIdleOrigins(now);
+            nextEviction = now + EVICT_INTERVAL_MS;
+        }
+
+        Window window = windows.get(from);
+        if(window == null) {
+            window = new Window(windowSize);
+            windows.put(from, window);
+        }
+
+        window.lastUsed = now;
+        return window.accept(seq);
+    }
+
+    // forgets the origins that sent nothing for ORIGIN_IDLE_MS
+    private void evictIdleOrigins(long now) {
+        Iterator<Window> it = windows.values().iterator();
+        while(it.hasNext()) {
+            if(now - it.next().lastUsed >= ORIGIN_IDLE_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    void linkUp(ChatConnection link) {
+        links.add(link);
+        System.out.println("Federation: linked to " + link.name + " (" + links.size() + " links)");
+    }
+
+    void linkDown(ChatConnection link) {
+        links.remove(link);
+        if(link.peer != null) {
+            link.peer.connected = false;
+        }
+        System.out.println("Federation: link to " + link.name + " closed (" + relayed.get() + " messages relayed, " + duplicates.get() + " duplicates dropped)");
+    }
+}
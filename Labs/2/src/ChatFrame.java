@@ -0,0 +1,95 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+/*
+ * Binary framing of the chat protocol, negotiated with the "binary" feature:
+ *     client: CAPbinary      server: CAPbinary
+ * Every line the server sends after the CAP reply, and every line the client
+ * sends after receiving it, is a frame instead of a text line:
+ *     type (1 byte) | length (int, big endian) | payload (length bytes of UTF-8)
+ * The type stands for the 3 letter prefix of the line (SEL, POL, ...), the
+ * payload is the rest of the line and can hold anything, new lines included.
+ * The reader knows the size of the frame from the header, nothing is scanned.
+ *
+ * The types are control characters no text line starts with, so the server
+ * can tell a frame from a text line by its first byte.
+ *
+ * With the "deflate" feature (binary only), a payload of Compression.THRESHOLD
+ * bytes or more can be sent compressed (zlib), the type then has the
+ * COMPRESSED bit set.  Both ends can send such frames once it is accepted.
+ *
+ * A payload is at most MAX_LENGTH bytes, before compression.  The server
+ * relays a message with a few fields added (the room, the sequence number,
+ * the FWD fields between nodes), so it takes at most MAX_MESSAGE_LENGTH
+ * from a client, and names (users, rooms, nodes) at most MAX_NAME_LENGTH
+ * characters: what it sends stays under MAX_LENGTH.
+ */
+public final class ChatFrame {
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_LENGTH = 1024 * 1024; // payload
+    public static final int MAX_ADDED = 4 * 1024; // bytes the server can add to a line it relays
+    public static final int MAX_MESSAGE_LENGTH = MAX_LENGTH - MAX_ADDED; // payload of a line from a client
+    public static final int MAX_NAME_LENGTH = 256; // characters, 3 bytes each at most
+
+    public static final int COMPRESSED = 0x80; // bit of the type, never the first byte of a text line (UTF-8)
+
+    private static final int FIRST_TYPE = 0x10;
+    private static final String[] PREFIXES = { "POL", "ACK", "NAC", "SEL", "MSG", "CAP", "JON", "LEV", "PRV", "HIS", "HSN", "FED", "FWD", "SRC", "FSN" };
+
+    private ChatFrame() {}
+
+    // true if b is the type of a frame (not the start of a text line)
+    public static boolean isType(byte b) {
+        int type = b & ~COMPRESSED & 0xFF;
+        return type >= FIRST_TYPE && type < FIRST_TYPE + PREFIXES.length;
+    }
+
+    // true if the payload of a frame of this type is compressed
+    public static boolean isCompressed(byte type) {
+        return (type & COMPRESSED) != 0;
+    }
+
+    // type of the frame carrying line
+    public static byte typeOf(String line) {
+        for(int i = 0; i < PREFIXES.length; ++i) {
+            if(line.startsWith(PREFIXES[i])) {
+                return (byte) (FIRST_TYPE + i);
+            }
+        }
+
+        throw new IllegalArgumentException("no frame type for >" + line + "<");
+    }
+
+    // prefix of the line carried by a frame of this type
+    public static String prefixOf(byte type) {
+        return PREFIXES[(type & ~COMPRESSED & 0xFF) - FIRST_TYPE];
+    }
+
+    // true if the payload of line (after the prefix) takes at most max bytes in UTF-8
+    public static boolean fits(String line, int max) {
+        int length = line.length() - 3;
+        if(length <= max / 3) {
+            return true; // even in 3 byte characters
+        }
+
+        int bytes = 0;
+        for(int i = 3; i < line.length() && bytes <= max; ++i) {
+            char c = line.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3; // a surrogate pair takes 4
+        }
+        return bytes <= max;
+    }
+
+    // line to send as text: a payload with new lines becomes several lines
+    // with the same prefix
+    public static String toText(String line) {
+        if(line.indexOf('\n') == -1) {
+            return line;
+        }
+
+        return line.replace("\r", "").replace("\n", "\n" + line.substring(0, 3));
+    }
+}
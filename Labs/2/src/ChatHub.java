@@ -0,0 +1,136 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Chat server running on several ChatEventLoops, one thread each (about
+ * one per core).  The hub accepts the connections and gives them to the
+ * loops in turn, a client then stays on its loop for good.
+ * What the loops share: the names of the clients (for private messages),
+ * the MessageRing, the ChatLog and the SearchIndex.  Everything else
+ * belongs to one loop.
+ * The metrics of all the loops are published through JMX (ChatServerMetrics).
+ * With a ChatFederation, the messages are also relayed to the other nodes.
+ */
+public class ChatHub {
+
+    private static final int BACKLOG = 1024; // connections waiting to be accepted
+
+    private ServerSocketChannel server;
+
+    ChatEventLoop[] loops;
+    ConcurrentHashMap<String, ChatConnection> names = new ConcurrentHashMap<String, ChatConnection>(); // named clients
+    volatile ChatLog log = null; // no history if null
+    volatile SearchIndex search = null; // no search if null
+    MessageRing ring = new MessageRing(); // numbers the messages, takes them to every loop, and keeps the last ones
+    ChatServerMetrics metrics; // one slot per loop
+    volatile ChatFederation federation = null; // single node if null
+    private AtomicInteger nextLoop = new AtomicInteger(0); // for the links opened to other nodes
+
+    public ChatHub(int port, int threads) throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), BACKLOG);
+
+        loops = new ChatEventLoop[Math.max(1, threads)];
+        metrics = new ChatServerMetrics(loops.length);
+        metrics.register();
+        for(int i = 0; i < loops.length; ++i) {
+            loops[i] = new ChatEventLoop(this, i);
+        }
+    }
+
+    // size of each client's queue and what to do when it is full
+    public void setOutputQueue(int capacity, ChatConnection.OverflowPolicy policy) {
+        for(ChatEventLoop loop : loops) {
+            loop.setOutputQueue(capacity, policy);
+        }
+        System.out.println("Output queues of " + capacity + " lines, overflow policy " + policy);
+    }
+
+    // messages per second each client can send, and how many at once
+    public void setRateLimit(double perSecond, int burst) {
+        for(ChatEventLoop loop : loops) {
+            loop.setRateLimit(perSecond, burst);
+        }
+        System.out.println("Rate limit: " + perSecond + " messages/s per client, bursts of " + burst);
+    }
+
+    // displays every message relayed, off by default
+    public void setVerbose(boolean verbose) {
+        for(ChatEventLoop loop : loops) {
+            loop.setVerbose(verbose);
+        }
+    }
+
+    // writes every message to the log, and answers the history requests from it
+    public void setLog(ChatLog log) {
+        this.log = log;
+        ring.setLog(log);
+        System.out.println("Chat log: messages " + log.firstSeq() + " to " + (log.nextSeq() - 1));
+    }
+
+    // indexes every message for SRC, after the ones of the log if there is one
+    // (set the log first)
+    public void setSearch(SearchIndex search) {
+        ChatLog log = this.log;
+        if(log != null) {
+            ChatLog.Cursor cursor = log.read(log.firstSeq());
+            for(String message = cursor.next(); message != null; message = cursor.next()) {
+                search.add(cursor.getSeq() - 1, message);
+            }
+        }
+
+        search.follow(ring);
+        this.search = search;
+        System.out.println("Search index: " + search.size() + " postings, from message " + search.firstSeq());
+    }
+
+    // links this node to the others, FED<node> is accepted from them once set
+    public void setFederation(ChatFederation federation) {
+        this.federation = federation;
+        System.out.println("Federation: node " + federation.getNode());
+    }
+
+    // gives a link opened to another node to one of the loops (any thread)
+    void adoptPeer(SocketChannel channel, ChatFederation.Peer peer) {
+        loops[Math.abs(nextLoop.getAndIncrement() % loops.length)].adopt(channel, peer);
+    }
+
+    // starts the loops, then accepts the connections on this thread
+    public void run() throws IOException {
+        for(int i = 0; i < loops.length; ++i) {
+            final ChatEventLoop loop = loops[i];
+
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        loop.run();
+                    }
+                    catch(IOException e) {
+                        e.printStackTrace();
+                        System.exit(1);
+                    }
+                }
+            }, "chat loop " + i);
+            thread.start();
+        }
+        System.out.println("Chat server running " + loops.length + " event loops");
+
+        if(federation != null) {
+            federation.start();
+        }
+
+        for(int next = 0; ; next = (next + 1) % loops.length) {
+            SocketChannel channel = server.accept();
+            loops[next].adopt(channel, null);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Random;
+
+/*
+ * Headless load generator for ChatServer.
+ * Simulates many users on one thread (non blocking sockets and a Selector),
+ * each speaking the protocol of ChatClient.checkServer: name first, then
+ * ACK<message> or NAC to every POL, and SEL<message> lines received.
+ * With -push the users ask for push mode (CAPpush) and send MSG<message>
+ * as soon as it is typed.
+ *
+ * Each user "types" rate messages per second.  A message carries the time
+ * it was typed:
+ *     load42 says: @<System.nanoTime()> xxxx...
+ * and every user receiving it records the time taken in a LatencyHistogram,
+ * so the latency includes the wait for the POL, the server, and the fan-out.
+ *
+ * usage: java ChatLoadGenerator [host] [port] [-users <n>] [-rate <messages/s per user>]
+ *            [-duration <s>] [-warmup <s>] [-size <bytes>] [-rooms <n>] [-push]
+ *     -rooms spreads the users over n rooms (JON), so each message goes to
+ *     users/n of them instead of everyone
+ */
+public class ChatLoadGenerator {
+
+    private static final String MARK = " says: @";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long REPORT_INTERVAL_NS = 5000000000L;
+
+    // one simulated user
+    private static class User {
+        String name;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE); // filling
+        ArrayDeque<Long> typed = new ArrayDeque<Long>(); // waiting for a POL
+        long nextMessage; // when the next message is typed
+    }
+
+    private String host = "localhost";
+    private int port = 4444;
+    private int userCount = 100;
+    private double rate = 1;
+    private long duration = 30;
+    private long warmup = 5;
+    private int size = 64;
+    private int roomCount = 0;
+    private boolean push = false;
+
+    private User[] users;
+    private Selector selector;
+    private String padding;
+
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private LatencyHistogram interval = new LatencyHistogram(); // since the last report
+    private long sent = 0;
+    private long received = 0;
+    private boolean measuring = false;
+
+    public static void main(String[] args) throws IOException {
+        ChatLoadGenerator generator = new ChatLoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        int positional = 0;
+
+        for(int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+
+            if(arg.equals("-push")) {
+                push = true;
+            }
+            else if(arg.startsWith("-") && i + 1 < args.length) {
+                String value = args[++i];
+
+                if(arg.equals("-users")) userCount = Integer.parseInt(value);
+                else if(arg.equals("-rate")) rate = Double.parseDouble(value);
+                else if(arg.equals("-duration")) duration = Long.parseLong(value);
+                else if(arg.equals("-warmup")) warmup = Long.parseLong(value);
+                else if(arg.equals("-size")) size = Integer.parseInt(value);
+                else if(arg.equals("-rooms")) roomCount = Integer.parseInt(value);
+                else System.out.println("Unknown option " + arg);
+            }
+            else if(positional++ == 0) {
+                host = arg;
+            }
+            else {
+                port = Integer.parseInt(arg);
+            }
+        }
+
+        StringBuilder fill = new StringBuilder(" ");
+        while(fill.length() < size) {
+            fill.append('x');
+        }
+        padding = fill.toString();
+    }
+
+    private void run() throws IOException {
+        selector = Selector.open();
+        users = new User[userCount];
+        Random random = new Random();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < userCount; ++i) {
+            users[i] = connect("load" + i, i);
+            // spread the first messages over one interval
+            users[i].nextMessage = start + (long) (random.nextDouble() * 1e9 / rate);
+        }
+        System.out.println(userCount + " users connected in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        start = System.nanoTime();
+        long measureStart = start + warmup * 1000000000L;
+        long end = measureStart + duration * 1000000000L;
+        long nextReport = start + REPORT_INTERVAL_NS;
+        long lastReceived = 0;
+        long lastSent = 0;
+
+        while(true) {
+            selector.select(1);
+            long now = System.nanoTime();
+
+            if(!measuring && now >= measureStart) {
+                measuring = true;
+                System.out.println("Warmup done, measuring for " + duration + " s");
+            }
+            if(now >= end) {
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                User user = (User) key.attachment();
+                if(key.isReadable()) {
+                    read(user);
+                }
+                if(key.isValid() && key.isWritable()) {
+                    flush(user);
+                }
+            }
+
+            // messages typed since the last pass
+            for(User user : users) {
+                while(user.nextMessage <= now) {
+                    type(user, user.nextMessage);
+                    user.nextMessage += (long) (1e9 / rate);
+                }
+            }
+
+            if(now >= nextReport) {
+                double seconds = (now - nextReport + REPORT_INTERVAL_NS) / 1e9;
+                System.out.println(String.format("sent %.0f/s, received %.0f/s, latency %s",
+                    (sent - lastSent) / seconds, (received - lastReceived) / seconds, interval.summary(1e6, "ms")));
+                interval.reset();
+                lastSent = sent;
+                lastReceived = received;
+                nextReport = now + REPORT_INTERVAL_NS;
+            }
+        }
+
+        System.out.println("Latency over " + duration + " s, " + userCount + " users, " + rate + " messages/s each" + (push ? ", push" : ", polled"));
+        System.out.println("    " + latencies.summary(1e6, "ms"));
+
+        for(User user : users) {
+            user.channel.close();
+        }
+    }
+
+    private User connect(String name, int i) throws IOException {
+        User user = new User();
+        user.name = name;
+        user.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        user.channel.socket().setTcpNoDelay(true);
+        user.channel.configureBlocking(false);
+        user.key = user.channel.register(selector, SelectionKey.OP_READ, user);
+
+        write(user, name);
+        if(push) {
+            write(user, "CAPpush");
+        }
+        if(roomCount > 0) {
+            write(user, "JONroom" + (i % roomCount));
+        }
+
+        return user;
+    }
+
+    // the user typed a message at time typed
+    private void type(User user, long typed) throws IOException {
+        if(push) {
+            write(user, "MSG" + user.name + MARK + typed + padding);
+            ++sent;
+        }
+        else {
+            user.typed.add(typed);
+        }
+    }
+
+    private void read(User user) throws IOException {
+        if(user.channel.read(user.in) < 0) {
+            throw new IOException(user.name + ": server closed the connection");
+        }
+
+        user.in.flip();
+        int start = user.in.position();
+
+        for(int i = start; i < user.in.limit(); ++i) {
+            if(user.in.get(i) == '\n') {
+                handle(user, user.in, start, i);
+                start = i + 1;
+            }
+        }
+
+        user.in.position(start);
+        user.in.compact();
+    }
+
+    // line from start to end (excluded)
+    private void handle(User user, ByteBuffer in, int start, int end) throws IOException {
+        if(end - start < 3) {
+            return;
+        }
+
+        byte b0 = in.get(start), b1 = in.get(start + 1), b2 = in.get(start + 2);
+
+        // POLLING
+        if(b0 == 'P' && b1 == 'O' && b2 == 'L') {
+            Long typed = user.typed.poll();
+            if(typed != null) {
+                write(user, "ACK" + user.name + MARK + typed + padding);
+                ++sent;
+            }
+            else {
+                write(user, "NAC");
+            }
+        }
+
+        // SELECT, record the latency of the messages of the load generator
+        else if(b0 == 'S' && b1 == 'E' && b2 == 'L') {
+            long now = System.nanoTime();
+            String line = new String(in.array(), start, end - start, StandardCharsets.UTF_8);
+            int mark = line.indexOf(MARK);
+
+            if(mark != -1 && measuring) {
+                int digits = mark + MARK.length();
+                int stop = line.indexOf(' ', digits);
+                long typed = Long.parseLong(line.substring(digits, stop == -1 ? line.length() : stop));
+
+                latencies.record(now - typed);
+                interval.record(now - typed);
+                ++received;
+            }
+        }
+    }
+
+    private void write(User user, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+        if(bytes.length > user.out.remaining()) {
+            flush(user);
+            if(bytes.length > user.out.remaining()) {
+                throw new IOException(user.name + ": server does not read");
+            }
+        }
+
+        user.out.put(bytes);
+        flush(user);
+    }
+
+    private void flush(User user) throws IOException {
+        user.out.flip();
+        user.channel.write(user.out);
+        user.out.compact();
+
+        user.key.interestOps(user.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+}
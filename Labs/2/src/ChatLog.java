@@ -0,0 +1,321 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Append-only log of every message relayed by the server.
+ * The log is a directory of segments of SEGMENT_SIZE bytes, each memory
+ * mapped and named after the sequence number of its first message:
+ *     00000000000000000001.log  00000000000000052311.log ...
+ * A record is
+ *     int length + 1 | long seq | int room length | room | message
+ * where length counts the bytes after the seq, the room and the message
+ * in UTF-8.  The room is kept so a history only holds the messages of the
+ * rooms the client is in.  The length is written last, plus one so that an
+ * empty message has a record too: 0 there marks the end of the segment
+ * (the file is zero filled when it is created).
+ *
+ * append() only copies the message into the mapping, commit() writes the
+ * segment to disk: the event loop commits once per pass, so all the messages
+ * of a pass share one force() (group commit).
+ *
+ * Reading goes through a Cursor, which reads one record at a time from the
+ * mapping, so replaying the history does not load it on the heap.
+ *
+ * Shared by the loops of a ChatHub, every access is synchronized on the log.
+ *
+ * java ChatLog <directory> writes a few messages (empty ones too) to a new
+ * log in directory, opens it again and checks they read back the same.
+ */
+public class ChatLog {
+
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = 12; // length + seq
+    private static final int INDEX_INTERVAL = 256; // records between two entries of a segment index
+
+    // one file of the log
+    private static class Segment {
+        long firstSeq;
+        long nextSeq; // seq of the next record appended
+        int end; // position of the next record
+        MappedByteBuffer map;
+        int[] index = new int[16]; // position of every INDEX_INTERVAL-th record
+        int indexCount = 0;
+
+        void addToIndex(long seq, int position) {
+            if((seq - firstSeq) % INDEX_INTERVAL == 0) {
+                if(indexCount == index.length) {
+                    index = Arrays.copyOf(index, indexCount * 2);
+                }
+                index[indexCount++] = position;
+            }
+        }
+
+        // position of the record seq, firstSeq <= seq < nextSeq
+        int find(long seq) {
+            long skip = seq - firstSeq;
+            int position = index[(int) (skip / INDEX_INTERVAL)];
+
+            for(long n = skip % INDEX_INTERVAL; n > 0; --n) {
+                position += HEADER_SIZE + map.getInt(position) - 1;
+            }
+
+            return position;
+        }
+    }
+
+    private File directory;
+    private ArrayList<Segment> segments = new ArrayList<Segment>(); // oldest first
+    private boolean uncommitted = false;
+
+    // opens the log in directory, created if needed
+    // the segments already there are scanned to find where to continue
+    public ChatLog(String directory) throws IOException {
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+
+        File[] files = this.directory.listFiles();
+        if(files != null) {
+            Arrays.sort(files);
+
+            for(File file : files) {
+                if(file.getName().endsWith(".log")) {
+                    segments.add(open(file, Long.parseLong(file.getName().substring(0, file.getName().length() - 4))));
+                }
+            }
+        }
+
+        if(segments.isEmpty()) {
+            roll(1);
+        }
+    }
+
+    // seq of the oldest message in the log
+    public synchronized long firstSeq() {
+        return segments.get(0).firstSeq;
+    }
+
+    // seq the next message will get
+    public synchronized long nextSeq() {
+        return current().nextSeq;
+    }
+
+    // adds a message posted in room to the log, returns its seq
+    // not on disk before the next commit()
+    public synchronized long append(String room, String message) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + roomBytes.length + messageBytes.length;
+        Segment segment = current();
+
+        // keep a zero length after the record to mark the end
+        if(segment.end + HEADER_SIZE + length + 4 > SEGMENT_SIZE) {
+            commit();
+            segment = roll(segment.nextSeq);
+        }
+
+        long seq = segment.nextSeq++;
+        int position = segment.end;
+
+        segment.map.putLong(position + 4, seq);
+        ByteBuffer data = segment.map.duplicate();
+        data.position(position + HEADER_SIZE);
+        data.putInt(roomBytes.length);
+        data.put(roomBytes);
+        data.put(messageBytes);
+        segment.map.putInt(position, length + 1); // last, the record is complete
+
+        segment.addToIndex(seq, position);
+        segment.end = position + HEADER_SIZE + length;
+        uncommitted = true;
+
+        return seq;
+    }
+
+    // writes the messages appended since the last commit to disk
+    public synchronized void commit() {
+        if(uncommitted) {
+            current().map.force();
+            uncommitted = false;
+        }
+    }
+
+    // cursor on the messages from seq (included) to the current end of the log
+    public synchronized Cursor read(long seq) {
+        return new Cursor(Math.max(seq, firstSeq()), nextSeq());
+    }
+
+    // cursor on the last count messages
+    public synchronized Cursor readLast(long count) {
+        return read(nextSeq() - count);
+    }
+
+    /*
+     * Position in the log, reads the messages one at a time.
+     * Stops at the end of the log when the cursor was created, later messages
+     * are sent to the clients as they arrive.
+     */
+    public class Cursor {
+        private long seq;
+        private final long endSeq;
+        private int segment = -1;
+        private int position;
+        private String room = null;
+
+        private Cursor(long seq, long endSeq) {
+            this.seq = seq;
+            this.endSeq = endSeq;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        // room of the message returned by the last next()
+        public String getRoom() {
+            return room;
+        }
+
+        // number of messages left to read
+        public long remaining() {
+            return endSeq - seq;
+        }
+
+        // next message, null at the end
+        public String next() {
+            synchronized(ChatLog.this) {
+                return read();
+            }
+        }
+
+        private String read() {
+            if(seq >= endSeq) {
+                return null;
+            }
+
+            if(segment == -1 || seq >= segments.get(segment).nextSeq) {
+                segment = findSegment(seq);
+                position = segments.get(segment).find(seq);
+            }
+
+            MappedByteBuffer map = segments.get(segment).map;
+            int length = map.getInt(position) - 1;
+
+            ByteBuffer data = map.duplicate();
+            data.position(position + HEADER_SIZE);
+            byte[] roomBytes = new byte[data.getInt()];
+            data.get(roomBytes);
+            byte[] bytes = new byte[length - 4 - roomBytes.length];
+            data.get(bytes);
+
+            position += HEADER_SIZE + length;
+            ++seq;
+
+            room = new String(roomBytes, StandardCharsets.UTF_8);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // index of the segment holding seq
+    private int findSegment(long seq) {
+        int low = 0;
+        int high = segments.size() - 1;
+
+        while(low < high) {
+            int middle = (low + high + 1) / 2;
+            if(segments.get(middle).firstSeq <= seq) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private Segment current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    // starts a new segment
+    private Segment roll(long firstSeq) throws IOException {
+        Segment segment = open(new File(directory, String.format("%020d.log", firstSeq)), firstSeq);
+        segments.add(segment);
+        return segment;
+    }
+
+    // maps a segment and finds its end
+    private static Segment open(File file, long firstSeq) throws IOException {
+        Segment segment = new Segment();
+        segment.firstSeq = firstSeq;
+        segment.nextSeq = firstSeq;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            segment.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+        finally {
+            raf.close(); // the mapping stays valid
+        }
+
+        int position = 0;
+        while(position + HEADER_SIZE <= SEGMENT_SIZE) {
+            int length = segment.map.getInt(position) - 1;
+            if(length < 0 || position + HEADER_SIZE + length > SEGMENT_SIZE || segment.map.getLong(position + 4) != segment.nextSeq) {
+                break;
+            }
+
+            segment.addToIndex(segment.nextSeq++, position);
+            position += HEADER_SIZE + length;
+        }
+        segment.end = position;
+
+        return segment;
+    }
+
+    // writes, opens again and reads back a log, see the top
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || new File(args[0]).exists()) {
+            System.out.println("usage: java ChatLog <new directory>");
+            System.exit(1);
+        }
+
+        String[] messages = { "first", "", "after an empty one", "", "", "h\u00e9llo", "last" };
+        String[] rooms = { "lobby", "lobby", "r\u00f4om", "", "lobby", "other", "lobby" };
+        ChatLog log = new ChatLog(args[0]);
+        for(int i = 0; i < messages.length; ++i) {
+            log.append(rooms[i], messages[i]);
+        }
+        log.commit();
+
+        ChatLog reopened = new ChatLog(args[0]);
+        Cursor cursor = reopened.read(reopened.firstSeq());
+        int count = 0;
+        boolean same = reopened.nextSeq() == log.nextSeq();
+        for(String message = cursor.next(); message != null; message = cursor.next()) {
+            same &= count < messages.length && message.equals(messages[count]) && cursor.getRoom().equals(rooms[count]);
+            ++count;
+        }
+        same &= count == messages.length;
+
+        // the next message goes after them, not over them
+        reopened.append("lobby", "appended");
+        same &= reopened.read(reopened.nextSeq() - 1).next().equals("appended")
+                && reopened.read(reopened.nextSeq() - 2).next().equals("last");
+
+        System.out.println(same ? "ChatLog: " + count + " messages read back" : "ChatLog: messages lost or changed after reopening");
+        System.exit(same ? 0 : 1);
+    }
+}
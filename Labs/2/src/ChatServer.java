@@ -4,23 +4,83 @@
  */
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 public class ChatServer {
 
     private static final int DEFAULT_PORT = 4444;
+    private static final int DEFAULT_BURST = 10; // messages, with -limit
+    private static final int LINES_PER_CLIENT = 4; // read from each client per round, at most
 
-    private static String[] messages = new String[ServerSocketManager.MAXCLIENTS];
-    private static int messageCount = 0;
+    private static ArrayList<String> messages = new ArrayList<String>(); // messages received this round
 
     private static ServerSocketManager manager = null;
 
+    private static ChatServerMetrics metrics = null; // one slot, this thread
+
+    private static double limit = 0; // messages per second per client, no limit if 0
+    private static int burst = DEFAULT_BURST;
+    private static HashMap<Integer, TokenBucket> limits = new HashMap<Integer, TokenBucket>(); // by client id
+
+    // usage: java ChatServer [port] [-legacy] [-threads <n>] [-queue <lines>] [-overflow drop|disconnect|lag] [-log <directory>] [-search]
+    //            [-node <id>] [-peer <host:port>]... [-window <messages>] [-secret <text>] [-limit <messages/s> [-burst <messages>]]
+    //            [-verbose]
+    // -legacy runs the original accept/poll/distribute loop
+    // instead of the selector driven ChatEventLoops of a ChatHub
+    // -threads is the number of ChatEventLoops (default: one per core)
+    // -queue and -overflow set the size of each client's queue and
+    // what to do when a client does not keep up (ChatEventLoop only)
+    // -log keeps every message in a ChatLog, for the HIS/HSN history requests (ChatEventLoop only)
+    // -search indexes the messages (and the log) for the SRC requests (see SearchIndex, ChatEventLoop only)
+    // -peer links this server to another one (repeat for several), the messages of the
+    // clients of both are relayed to the other (see ChatFederation, ChatEventLoop only)
+    // -node is the id of this server among them (default: host:port)
+    // -window is how far behind the fastest path a relayed message can arrive and still
+    // be delivered (default ChatFederation.DEFAULT_WINDOW messages per origin)
+    // -secret is shared by the nodes, a link is accepted from any host giving it;
+    // without it, only from the hosts given with -peer
+    // -limit is the number of messages per second a client can send, in bursts
+    // of up to -burst (default 10); a client over it is not polled (not read
+    // with the ChatEventLoop) until it has tokens again
+    // -verbose displays every message relayed (always with -legacy)
     public static void main(String[] args) throws IOException {
         // get port number
         int port = getPort(args);
 
+        if(getOption(args, "-limit") != null) {
+            limit = Double.parseDouble(getOption(args, "-limit"));
+            burst = getIntOption(args, "-burst", DEFAULT_BURST);
+        }
+
+        if(!hasOption(args, "-legacy")) {
+            ChatConnection.OverflowPolicy policy = getOverflowPolicy(args);
+            ChatHub hub = new ChatHub(port, getIntOption(args, "-threads", Runtime.getRuntime().availableProcessors()));
+            hub.setOutputQueue(getIntOption(args, "-queue", ChatConnection.DEFAULT_QUEUE_CAPACITY), policy);
+            if(getOption(args, "-log") != null) {
+                hub.setLog(new ChatLog(getOption(args, "-log")));
+            }
+            if(hasOption(args, "-search")) {
+                hub.setSearch(new SearchIndex());
+            }
+            if(limit > 0) {
+                hub.setRateLimit(limit, burst);
+            }
+            hub.setVerbose(hasOption(args, "-verbose"));
+            if(getOption(args, "-node") != null || getOption(args, "-peer") != null || getOption(args, "-window") != null || getOption(args, "-secret") != null) {
+                hub.setFederation(getFederation(hub, args, port));
+            }
+            hub.run();
+            return;
+        }
+
         // Create the server socket manager
         manager = new ServerSocketManager(port);
 
+        metrics = new ChatServerMetrics(1);
+        metrics.register();
+
         // start loop
         while(loop());
     }
@@ -39,18 +99,101 @@ public class ChatServer {
         return DEFAULT_PORT;
     }
 
+    private static boolean hasOption(String[] args, String option) {
+        for(String arg : args) {
+            if(arg.equals(option)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // value following the option, null if not given
+    private static String getOption(String[] args, String option) {
+        for(int i = 0; i + 1 < args.length; ++i) {
+            if(args[i].equals(option)) {
+                return args[i + 1];
+            }
+        }
+
+        return null;
+    }
+
+    private static ChatFederation getFederation(ChatHub hub, String[] args, int port) throws IOException {
+        String node = getOption(args, "-node");
+        if(node == null) {
+            node = InetAddress.getLocalHost().getHostName() + ":" + port;
+        }
+        if(node.length() > ChatFrame.MAX_NAME_LENGTH) {
+            System.out.println("usage: -node <id>, " + ChatFrame.MAX_NAME_LENGTH + " characters at most");
+            System.exit(1);
+        }
+
+        ChatFederation federation = new ChatFederation(hub, node);
+        federation.setWindow(getIntOption(args, "-window", ChatFederation.DEFAULT_WINDOW));
+        federation.setSecret(getOption(args, "-secret"));
+        for(int i = 0; i + 1 < args.length; ++i) {
+            if(args[i].equals("-peer")) {
+                federation.addPeer(args[i + 1]);
+            }
+        }
+
+        return federation;
+    }
+
+    private static int getIntOption(String[] args, String option, int defaultValue) {
+        String value = getOption(args, option);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static ChatConnection.OverflowPolicy getOverflowPolicy(String[] args) {
+        String policy = getOption(args, "-overflow");
+
+        if(policy == null || "drop".equals(policy)) {
+            return ChatConnection.OverflowPolicy.DROP_OLDEST;
+        }
+        else if("disconnect".equals(policy)) {
+            return ChatConnection.OverflowPolicy.DISCONNECT;
+        }
+        else if("lag".equals(policy)) {
+            return ChatConnection.OverflowPolicy.MARK_LAGGING;
+        }
+
+        System.out.println("Unknown overflow policy: " + policy);
+        System.out.println("usage: -overflow drop|disconnect|lag");
+        System.exit(1);
+        return null;
+    }
+
     private static boolean loop() throws IOException {
+        long start = System.nanoTime();
 
         acceptNewConnections();
 
+        long accepted = System.nanoTime();
+
         pollForMessages();
 
+        long polled = System.nanoTime();
+
         checkResponses();
 
+        long checked = System.nanoTime();
+
         distributeMessages();
 
+        long distributed = System.nanoTime();
+
         manager.closeConnections();
 
+        metrics.increment(0, ChatServerMetrics.PASSES);
+        metrics.add(0, ChatServerMetrics.ACCEPT_NS, accepted - start);
+        metrics.add(0, ChatServerMetrics.POLL_NS, polled - accepted);
+        metrics.add(0, ChatServerMetrics.CHECK_RESPONSES_NS, checked - polled);
+        metrics.add(0, ChatServerMetrics.DISTRIBUTE_NS, distributed - checked);
+        metrics.set(0, ChatServerMetrics.CONNECTED, manager.getClientCount());
+
         return true;
         // true to loop again
         // i guess there used to be a stopping mechanism
@@ -61,31 +204,66 @@ public class ChatServer {
         int newClientId = manager.listenOnSocket(); // times out
 
         if(newClientId != -1) {
+            if(limit > 0) {
+                limits.put(newClientId, new TokenBucket(limit, burst)); // ids are reused, start afresh
+            }
+
             // expect name to be received
-            messages[messageCount++] = manager.readClient(newClientId) + " joined";
+            messages.add(manager.readClient(newClientId) + " joined");
         }
     }
 
+    // clients over their rate limit are not polled until they have tokens again
     private static void pollForMessages() throws IOException {
-        for(int id = 0; id < ServerSocketManager.MAXCLIENTS; ++id) {
+        long now = System.nanoTime();
+
+        for(int i = 0; i < manager.getClientCount(); ++i) {
+            int id = manager.getClientId(i);
+            TokenBucket bucket = limits.get(id);
+
+            if(bucket != null && !bucket.available(now)) {
+                continue;
+            }
             if(!manager.isClosed(id)) {
                 manager.writeClient(id, "POL");
             }
         }
     }
 
+    // pollClients() takes the clients in turn, and a round reads at most
+    // LINES_PER_CLIENT lines per client, so a client that keeps sending
+    // cannot keep the others waiting
     private static void checkResponses() throws IOException {
-        for(int id = manager.pollClients(); id != -1; id = manager.pollClients()) {
+        int lines = manager.getClientCount() * LINES_PER_CLIENT;
+
+        for(int id = manager.pollClients(); id != -1 && lines > 0; id = manager.pollClients(), --lines) {
 
             String message = manager.readClient(id);
 
             if(message != null) { // received a string
                 if(message.startsWith("ACK")) {
-                    messages[messageCount++] = message.substring(3);
+                    TokenBucket bucket = limits.get(id);
+                    long now = System.nanoTime();
+
+                    // only a client answering without being polled can be over the limit
+                    if(bucket == null || bucket.available(now)) {
+                        messages.add(message.substring(3));
+                        if(bucket != null) {
+                            bucket.take(now, 1);
+                        }
+                    }
+                    else {
+                        metrics.increment(0, ChatServerMetrics.THROTTLED);
+                    }
                 }
 
                 else if(message.startsWith("NAC")) /*no msg*/;
 
+                // no optional features in this loop, client keeps being polled
+                else if(message.startsWith("CAP")) {
+                    manager.writeClient(id, "CAP");
+                }
+
                 else {
                     System.out.println("Unknown message ("+id+"): >"+message+"<");
                 }
@@ -93,18 +271,34 @@ public class ChatServer {
         }
     }
 
+    // all the messages of the round go to each client in one write
     private static void distributeMessages() throws IOException {
-        for(int msg = 0; msg < messageCount; ++msg) {
-            System.out.println(messages[msg]);
-            String message = "SEL" + messages[msg];
+        if(messages.isEmpty()) {
+            return;
+        }
 
-            for(int id = 0; id < ServerSocketManager.MAXCLIENTS; ++id) {
-                if(!manager.isClosed(id)) {
-                    manager.writeClient(id, message);
-                }
+        StringBuilder batch = new StringBuilder();
+        for(int msg = 0; msg < messages.size(); ++msg) {
+            System.out.println(messages.get(msg));
+            batch.append("SEL").append(messages.get(msg)).append('\n');
+        }
+
+        // encoded once for every client
+        byte[] message = batch.toString().getBytes();
+
+        int sent = 0;
+        for(int i = 0; i < manager.getClientCount(); ++i) {
+            int id = manager.getClientId(i);
+            if(!manager.isClosed(id)) {
+                manager.writeClient(id, message);
+                ++sent;
             }
         }
 
-        messageCount = 0; // reset index to fill array again
+        metrics.add(0, ChatServerMetrics.MESSAGES_IN, messages.size());
+        metrics.add(0, ChatServerMetrics.MESSAGES_OUT, (long) messages.size() * sent);
+        metrics.add(0, ChatServerMetrics.BYTES_WRITTEN, (long) message.length * sent);
+
+        messages.clear(); // empty the list to fill it again
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Counters and timers of the chat server, published through JMX as
+ * ChatServer:type=Metrics.
+ * Each loop thread updates its own slot (a row of an AtomicLongArray,
+ * padded so two loops never write the same cache line), so add() is one
+ * uncontended atomic add and never allocates.  The getters add up the slots.
+ * The rates are computed once per second by a timer thread.
+ */
+public class ChatServerMetrics implements ChatServerMetricsMBean {
+
+    public static final String OBJECT_NAME = "ChatServer:type=Metrics";
+
+    // counters of a slot
+    public static final int CONNECTED = 0; // gauge, +1 / -1
+    public static final int MESSAGES_IN = 1;
+    public static final int MESSAGES_OUT = 2;
+    public static final int BYTES_WRITTEN = 3;
+    public static final int PASSES = 4;
+    public static final int ACCEPT_NS = 5;
+    public static final int POLL_NS = 6;
+    public static final int CHECK_RESPONSES_NS = 7;
+    public static final int DISTRIBUTE_NS = 8;
+    public static final int QUEUED = 9; // gauge, set with the snapshot
+    public static final int MAX_QUEUED = 10; // gauge, set with the snapshot
+    public static final int THROTTLED = 11; // clients that went over their rate limit
+    private static final int COUNTERS = 12;
+
+    private static final int STRIDE = 16; // 128 bytes per slot
+
+    private final int slots;
+    private final AtomicLongArray counters;
+    private final AtomicReferenceArray<String[]> queueDepths; // by slot
+
+    // rates, computed by the timer
+    private volatile double messagesInRate = 0;
+    private volatile double messagesOutRate = 0;
+    private volatile double bytesRate = 0;
+    private long lastIn = 0, lastOut = 0, lastBytes = 0, lastSample = System.nanoTime();
+
+    // one slot per thread updating the metrics
+    public ChatServerMetrics(int slots) {
+        this.slots = slots;
+        counters = new AtomicLongArray(slots * STRIDE);
+        queueDepths = new AtomicReferenceArray<String[]>(slots);
+
+        Timer timer = new Timer("chat metrics", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                sample();
+            }
+        }, 1000, 1000);
+    }
+
+    // registers with the platform MBean server, errors are only displayed
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch(JMException e) {
+            System.out.println("Could not register the metrics: " + e);
+        }
+    }
+
+    public void add(int slot, int counter, long value) {
+        counters.addAndGet(slot * STRIDE + counter, value);
+    }
+
+    public void increment(int slot, int counter) {
+        counters.incrementAndGet(slot * STRIDE + counter);
+    }
+
+    public void set(int slot, int counter, long value) {
+        counters.set(slot * STRIDE + counter, value);
+    }
+
+    // per client queue depths of a slot ("client name: depth"), off the hot path
+    public void publishQueueDepths(int slot, String[] depths, long total, long max) {
+        queueDepths.set(slot, depths);
+        set(slot, QUEUED, total);
+        set(slot, MAX_QUEUED, max);
+    }
+
+    private long sum(int counter) {
+        long total = 0;
+        for(int slot = 0; slot < slots; ++slot) {
+            total += counters.get(slot * STRIDE + counter);
+        }
+        return total;
+    }
+
+    private long max(int counter) {
+        long max = 0;
+        for(int slot = 0; slot < slots; ++slot) {
+            max = Math.max(max, counters.get(slot * STRIDE + counter));
+        }
+        return max;
+    }
+
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1e9;
+        long in = sum(MESSAGES_IN), out = sum(MESSAGES_OUT), bytes = sum(BYTES_WRITTEN);
+
+        messagesInRate = (in - lastIn) / seconds;
+        messagesOutRate = (out - lastOut) / seconds;
+        bytesRate = (bytes - lastBytes) / seconds;
+
+        lastIn = in;
+        lastOut = out;
+        lastBytes = bytes;
+        lastSample = now;
+    }
+
+    public int getConnectedClients() {
+        return (int) sum(CONNECTED);
+    }
+
+    public long getMessagesIn() {
+        return sum(MESSAGES_IN);
+    }
+
+    public long getMessagesOut() {
+        return sum(MESSAGES_OUT);
+    }
+
+    public long getBytesWritten() {
+        return sum(BYTES_WRITTEN);
+    }
+
+    public double getMessagesInPerSecond() {
+        return messagesInRate;
+    }
+
+    public double getMessagesOutPerSecond() {
+        return messagesOutRate;
+    }
+
+    public double getBytesWrittenPerSecond() {
+        return bytesRate;
+    }
+
+    public long getLoopPasses() {
+        return sum(PASSES);
+    }
+
+    public long getAcceptTime() {
+        return sum(ACCEPT_NS);
+    }
+
+    public long getPollTime() {
+        return sum(POLL_NS);
+    }
+
+    public long getCheckResponsesTime() {
+        return sum(CHECK_RESPONSES_NS);
+    }
+
+    public long getDistributeTime() {
+        return sum(DISTRIBUTE_NS);
+    }
+
+    public long getThrottled() {
+        return sum(THROTTLED);
+    }
+
+    public long getTotalQueueDepth() {
+        return sum(QUEUED);
+    }
+
+    public long getMaxQueueDepth() {
+        return max(MAX_QUEUED);
+    }
+
+    public String[] getQueueDepths() {
+        int count = 0;
+        for(int slot = 0; slot < slots; ++slot) {
+            String[] depths = queueDepths.get(slot);
+            count += depths == null ? 0 : depths.length;
+        }
+
+        String[] all = new String[count];
+        count = 0;
+        for(int slot = 0; slot < slots; ++slot) {
+            String[] depths = queueDepths.get(slot);
+            if(depths != null) {
+                System.arraycopy(depths, 0, all, count, depths.length);
+                count += depths.length;
+            }
+        }
+
+        return all;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+/*
+ * Management interface of ChatServerMetrics (JMX, e.g. jconsole).
+ * Times are in nanoseconds, totals since the server started.
+ */
+public interface ChatServerMetricsMBean {
+
+    int getConnectedClients();
+
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesWritten();
+
+    // over the last second
+    double getMessagesInPerSecond();
+    double getMessagesOutPerSecond();
+    double getBytesWrittenPerSecond();
+
+    long getLoopPasses();
+    long getAcceptTime();
+    long getPollTime();
+    long getCheckResponsesTime();
+    long getDistributeTime();
+
+    // times a client went over its rate limit (-limit)
+    long getThrottled();
+
+    // lines waiting to be written, refreshed every second
+    long getTotalQueueDepth();
+    long getMaxQueueDepth();
+    String[] getQueueDepths();
+}
@@ -0,0 +1,97 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.util.Arrays;
+
+/*
+ * Growable table of connected clients.
+ * add() and remove() are O(1): ids of removed clients are reused, and the
+ * ids in use are kept in a dense list (removal moves the last id into the
+ * hole) so iterating over the clients only visits the ones connected.
+ *
+ * To iterate:
+ *     for(int i = 0; i < registry.size(); ++i) { T client = registry.get(registry.idAt(i)); }
+ * Removing the client at index i moves another one there, iterate backwards
+ * if clients can be removed during the iteration.
+ */
+public class ClientRegistry<T> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] clients = new Object[INITIAL_CAPACITY]; // by id
+    private int[] position = new int[INITIAL_CAPACITY]; // index of the id in active
+    private int[] active = new int[INITIAL_CAPACITY]; // ids in use
+    private int size = 0;
+
+    private int[] freeIds = new int[INITIAL_CAPACITY]; // stack of removed ids
+    private int freeCount = 0;
+    private int nextId = 0; // ids never used start here
+
+    // adds a client, returns its id
+    public int add(T client) {
+        int id;
+
+        if(freeCount > 0) {
+            id = freeIds[--freeCount];
+        }
+        else {
+            id = nextId++;
+
+            if(id == clients.length) {
+                clients = Arrays.copyOf(clients, id * 2);
+                position = Arrays.copyOf(position, id * 2);
+                active = Arrays.copyOf(active, id * 2);
+            }
+        }
+
+        clients[id] = client;
+        position[id] = size;
+        active[size++] = id;
+
+        return id;
+    }
+
+    // removes a client, returns it (null if the id is not in use)
+    public T remove(int id) {
+        T client = get(id);
+
+        if(client == null) {
+            return null;
+        }
+
+        // move the last id into the hole
+        int last = active[--size];
+        active[position[id]] = last;
+        position[last] = position[id];
+
+        clients[id] = null;
+
+        if(freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+
+        return client;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int id) {
+        if(id < 0 || id >= clients.length) {
+            return null;
+        }
+
+        return (T) clients[id];
+    }
+
+    // number of clients
+    public int size() {
+        return size;
+    }
+
+    // id of the i-th client, 0 <= i < size()
+    public int idAt(int i) {
+        return active[i];
+    }
+}
@@ -3,20 +3,26 @@
  * Jonathan Guillotte-Blouin, 7900293
  */
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 
 public class ClientSocketManager {
 
     // References to objects for Socket connection and
 	// Reading/writing to sockets
 	private Socket socket = null;    // Reference to the Socket for managing a client socket
-    private PrintWriter writer = null;  // The PrintWriter used to write to the socket
-    private BufferedReader reader = null;  // The BufferedReader used to read from the socket
+    private DataOutputStream writer = null;  // The stream used to write to the socket
+    private DataInputStream reader = null;  // The stream used to read from the socket
+    private volatile boolean binary = false; // lines are sent and received as frames (see ChatFrame)
+    private volatile boolean deflate = false; // large frames are sent compressed
     // For maintaining the address components of the socket addresses.
     String localIP = null;
     int localPort = -1;
@@ -37,8 +43,15 @@ public class ClientSocketManager {
 		this.destPort = dPort;
 
 		socket = new Socket(destIP, destPort);
-		reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		writer = new PrintWriter(socket.getOutputStream());
+		reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		binary = false;
+		deflate = false;
+    }
+
+    // Switch to frames, once the server accepted the "binary" feature
+    public void setBinary(boolean binary) {
+		this.binary = binary;
     }
 
     // Close the connection
@@ -48,22 +61,81 @@ public class ClientSocketManager {
 		socket = null;
     }
 
+    // Compress the large frames, once the server accepted the "deflate" feature
+    public void setDeflate(boolean deflate) {
+		this.deflate = deflate;
+    }
+
     // Read a string from connection
     // If a SocketException occurs, assume the connection is closed.
     public String read() throws IOException {
 		try {
-			String line = reader.readLine();
-			return line;
+			return binary ? readFrame() : readLine();
 		}
 		catch(SocketException e) {
 			return null;
 		}
+		catch(EOFException e) {
+			return null;
+		}
     }
 
     // Write a String to the connection
-    public void write(String stream) throws IOException {
-		writer.println(stream);
+    // Called by the reader thread (answers to POL) and the AWT thread (push mode)
+    // A line longer than the server relays is not sent (see ChatFrame)
+    public synchronized void write(String stream) throws IOException {
+		if(!ChatFrame.fits(stream, ChatFrame.MAX_MESSAGE_LENGTH)) {
+			throw new IOException("line too long");
+		}
+		if(binary) {
+			byte[] payload = stream.substring(3).getBytes(StandardCharsets.UTF_8);
+			byte[] compressed = deflate ? Compression.deflate(payload) : null;
+			if(compressed != null) {
+				writer.writeByte(ChatFrame.typeOf(stream) | ChatFrame.COMPRESSED);
+				writer.writeInt(compressed.length);
+				writer.write(compressed);
+			}
+			else {
+				writer.writeByte(ChatFrame.typeOf(stream));
+				writer.writeInt(payload.length);
+				writer.write(payload);
+			}
+		}
+		else {
+			writer.write((stream + "\n").getBytes(StandardCharsets.UTF_8));
+		}
 		writer.flush();
     }
 
+    // Text line, without the end of line (null at the end of the stream)
+    private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = reader.read()) != '\n') {
+			if(b == -1) {
+				return line.size() > 0 ? line.toString("UTF-8") : null;
+			}
+			if(b != '\r') {
+				line.write(b);
+			}
+		}
+		return line.toString("UTF-8");
+    }
+
+    // Frame: type, length, payload - given as the line with its prefix
+    private String readFrame() throws IOException {
+		byte type = reader.readByte();
+		int length = reader.readInt();
+		if(!ChatFrame.isType(type) || length < 0 || length > ChatFrame.MAX_LENGTH) {
+			throw new IOException("bad frame from the server");
+		}
+
+		byte[] payload = new byte[length];
+		reader.readFully(payload);
+		if(ChatFrame.isCompressed(type)) {
+			return ChatFrame.prefixOf(type) + Compression.inflate(payload, 0, length, ChatFrame.MAX_LENGTH);
+		}
+		return ChatFrame.prefixOf(type) + new String(payload, StandardCharsets.UTF_8);
+    }
+
 }
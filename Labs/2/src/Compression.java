@@ -0,0 +1,107 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compression of the payload of large ChatFrames ("deflate" feature, see
+ * ChatFrame).  Each thread keeps its own Deflater and Inflater (and the
+ * arrays they write to) and resets them for every payload, so nothing is
+ * allocated but the result and no native memory is left to the GC.
+ * Payloads under THRESHOLD bytes are not worth it and are sent as they are,
+ * like the ones that do not get smaller.
+ */
+public final class Compression {
+
+    public static final int THRESHOLD = 256; // bytes of payload
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    private Compression() {}
+
+    // compressed payload, null if under THRESHOLD or not smaller
+    public static byte[] deflate(byte[] payload) {
+        if(payload.length < THRESHOLD) {
+            return null;
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+
+        byte[] out = buffer(payload.length);
+        int length = 0;
+        while(!deflater.finished()) {
+            length += deflater.deflate(out, length, out.length - length);
+            if(length == out.length) {
+                return null; // not smaller
+            }
+        }
+
+        return Arrays.copyOf(out, length);
+    }
+
+    // text of a compressed payload, at most max bytes once inflated
+    public static String inflate(byte[] data, int offset, int length, int max) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+
+        byte[] out = buffer(Math.min(max, length * 4));
+        int size = 0;
+        try {
+            while(!inflater.finished()) {
+                if(size == out.length) {
+                    if(out.length >= max) {
+                        throw new IOException("compressed payload over " + max + " bytes");
+                    }
+                    out = Arrays.copyOf(out, Math.min(max, out.length * 2)); // keeps what was inflated
+                    scratch.set(out);
+                }
+
+                int inflated = inflater.inflate(out, size, out.length - size);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated compressed payload");
+                }
+                size += inflated;
+            }
+        }
+        catch(DataFormatException e) {
+            throw new IOException("bad compressed payload: " + e.getMessage());
+        }
+
+        return new String(out, 0, size, StandardCharsets.UTF_8);
+    }
+
+    // the thread's array, at least size bytes
+    private static byte[] buffer(int size) {
+        byte[] out = scratch.get();
+        if(out.length < size) {
+            out = new byte[Math.max(size, out.length * 2)];
+            scratch.set(out);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * The last messages of a ChatHub, in the order they were accepted, each
+ * with its sequence number.  It is also how the messages go from one loop
+ * to the others: a loop appends the messages it received, and every entry
+ * is added to the queue of each reader (each loop, see addReader()) under
+ * the lock of append(), so all the clients get every message in sequence
+ * order, whatever loop they are on.  A reader that falls behind loses
+ * nothing, its queue grows until it catches up.
+ *
+ * A client that reconnects gives the last sequence number it received
+ * (RSM, see ChatEventLoop) and gets the messages it missed from here, as
+ * long as they were not evicted: at most CAPACITY messages and MAX_BYTES
+ * (about) are kept, the oldest go first.
+ *
+ * Only append() takes a lock.  The entries are immutable and published by
+ * the volatile head, a reader checks the sequence number of the entry it
+ * reads to know whether it was evicted in the meantime.
+ * With a ChatLog, the messages are appended to it under the same lock, so
+ * the sequence numbers are the ones of the log (HSN<seq> works with them).
+ * A SearchIndex is one more reader, it indexes the messages on its own thread.
+ */
+public class MessageRing {
+
+    public static final int CAPACITY = 4096; // power of 2
+    public static final long MAX_BYTES = 4 * 1024 * 1024; // of the kept messages
+    private static final int ENTRY_OVERHEAD = 64; // bytes taken by an entry besides its strings
+
+    // one message
+    public static class Entry {
+        public final long seq;
+        public final String room;
+        public final String message; // as sent, after SEL
+        public final String forward; // FWD line sent to the other nodes, null if none (see ChatFederation)
+        public final long time; // System.currentTimeMillis() when appended
+        final int size; // in bytes, about
+
+        Entry(long seq, String room, String message, String forward) {
+            this.seq = seq;
+            this.room = room;
+            this.message = message;
+            this.forward = forward;
+            time = System.currentTimeMillis();
+            size = ENTRY_OVERHEAD + 2 * (room.length() + message.length() + (forward == null ? 0 : forward.length()));
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(CAPACITY);
+    private volatile long head = 0; // sequence number of the next message
+    private volatile long oldest = 0; // of the oldest message kept
+    private long bytes = 0; // taken by the messages kept
+    private ArrayList<Queue<Entry>> readers = new ArrayList<Queue<Entry>>();
+    private ChatLog log = null;
+
+    // the messages are also written to log, numbered after the ones it has
+    public synchronized void setLog(ChatLog log) {
+        this.log = log;
+        oldest = head = log.nextSeq();
+    }
+
+    // every message appended from now on is added to queue, in sequence order
+    public synchronized void addReader(Queue<Entry> queue) {
+        readers.add(queue);
+    }
+
+    // forward is the FWD line of the message, null if it is not federated
+    // returns the sequence number of the message
+    public synchronized long append(String room, String message, String forward) throws IOException {
+        long seq = log == null ? head : log.append(room, message);
+        Entry entry = new Entry(seq, room, message, forward);
+
+        // room for the new one
+        while(oldest < seq && (seq - oldest >= CAPACITY || bytes + entry.size > MAX_BYTES)) {
+            evictOldest();
+        }
+
+        entries.set((int) (seq & (CAPACITY - 1)), entry);
+        bytes += entry.size;
+        head = seq + 1; // publishes the entry
+
+        for(Queue<Entry> reader : readers) {
+            reader.add(entry);
+        }
+
+        return seq;
+    }
+
+    // sequence number of the next message
+    public long head() {
+        return head;
+    }
+
+    // sequence number of the oldest message still kept
+    public long oldest() {
+        return oldest;
+    }
+
+    // the message seq, null if it was evicted (or not appended yet)
+    public Entry read(long seq) {
+        if(seq < oldest || seq >= head) {
+            return null;
+        }
+
+        Entry entry = entries.get((int) (seq & (CAPACITY - 1)));
+        return entry != null && entry.seq == seq ? entry : null;
+    }
+
+    // under the lock of append()
+    private void evictOldest() {
+        int slot = (int) (oldest & (CAPACITY - 1));
+        Entry entry = entries.get(slot);
+
+        if(entry != null && entry.seq == oldest) {
+            entries.set(slot, null); // not kept alive until overwritten
+            bytes -= entry.size;
+        }
+        ++oldest;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Chat rooms and their members.
+ * Each room keeps the ids of its members (ClientRegistry ids) in a sorted
+ * int array, so sending to a room only visits its members, and checking
+ * or changing membership is a binary search.
+ * A room is deleted when its last member leaves.
+ */
+public class RoomIndex {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    public static class Room {
+        private final String name;
+        private int[] members = new int[INITIAL_CAPACITY]; // sorted
+        private int size = 0;
+
+        private Room(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // number of members
+        public int size() {
+            return size;
+        }
+
+        // id of the i-th member, 0 <= i < size()
+        // removing a member moves the ones after it, iterate backwards
+        // if members can leave during the iteration
+        public int memberAt(int i) {
+            return members[i];
+        }
+
+        public boolean contains(int id) {
+            return Arrays.binarySearch(members, 0, size, id) >= 0;
+        }
+
+        private boolean add(int id) {
+            int i = Arrays.binarySearch(members, 0, size, id);
+            if(i >= 0) {
+                return false;
+            }
+
+            i = -i - 1;
+            if(size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+            }
+            System.arraycopy(members, i, members, i + 1, size - i);
+            members[i] = id;
+            ++size;
+
+            return true;
+        }
+
+        private boolean remove(int id) {
+            int i = Arrays.binarySearch(members, 0, size, id);
+            if(i < 0) {
+                return false;
+            }
+
+            System.arraycopy(members, i + 1, members, i, size - i - 1);
+            --size;
+
+            return true;
+        }
+    }
+
+    private HashMap<String, Room> rooms = new HashMap<String, Room>();
+
+    // room by name, null if nobody is in it
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    // number of rooms with members
+    public int size() {
+        return rooms.size();
+    }
+
+    // adds id to the room, created if needed
+    // returns the room, null if id was already a member
+    public Room join(String name, int id) {
+        Room room = rooms.get(name);
+
+        if(room == null) {
+            room = new Room(name);
+            rooms.put(name, room);
+        }
+
+        return room.add(id) ? room : null;
+    }
+
+    // removes id from the room, returns false if it was not a member
+    public boolean leave(Room room, int id) {
+        if(!room.remove(id)) {
+            return false;
+        }
+
+        if(room.size == 0) {
+            rooms.remove(room.name);
+        }
+
+        return true;
+    }
+}
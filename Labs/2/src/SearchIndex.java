@@ -0,0 +1,511 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * Full text index of the messages, by sequence number (SRC, see
+ * ChatEventLoop).  A term is a run of letters and digits, lower case, of
+ * MIN_TERM_LENGTH characters or more; a search returns the messages holding
+ * all the terms of the query, the most recent first.
+ *
+ * The index is made of segments, each covering a range of sequence numbers.
+ * The messages are added to the active segment in sequence order, by a
+ * thread of the index that reads them from the MessageRing (follow()), so
+ * the loops never wait for the index: a message can be found a little
+ * after it was sent.  The active segment is sealed once it holds
+ * SEGMENT_POSTINGS postings: its terms are sorted and its posting lists put
+ * end to end in one array.  The sealed segments never change, a search reads
+ * them without the lock.
+ *
+ * A posting list is the sequence numbers of the messages holding the term,
+ * increasing, each as the difference with the previous one (the first with
+ * the first seq of the segment) written as a varint: 7 bits per byte, the
+ * high bit set on every byte but the last.  A posting usually takes a byte
+ * or two instead of 8.
+ *
+ * Every MERGE_FACTOR sealed segments of the same level are merged into one
+ * of the next level, so a term is in a few segments only, whatever the
+ * number of messages.  The lists of a term are just put end to end (the
+ * segments cover consecutive ranges), only the first difference of each
+ * changes.  A segment is not merged past maxPostings / MERGE_FACTOR
+ * postings, and the oldest segments are dropped when the index holds more
+ * than maxPostings: the memory used is bounded, the oldest messages are not
+ * found any more.
+ *
+ * add() is called by one thread at a time (the one of follow()), search()
+ * by any thread.  The lock is only taken to change the active segment and
+ * to publish what was sealed or merged, the sealing and merging themselves
+ * are done without it, so a search never waits for them.
+ */
+public class SearchIndex {
+
+    public static final int MIN_TERM_LENGTH = 2;
+    public static final int MAX_TERM_LENGTH = 32; // longer terms are cut
+    public static final long DEFAULT_MAX_POSTINGS = 16 * 1024 * 1024;
+
+    private static final int SEGMENT_POSTINGS = 64 * 1024; // in the active segment before it is sealed
+    private static final int MERGE_FACTOR = 4;
+
+    // posting list of the active segment
+    private static class Postings {
+        byte[] bytes = new byte[4];
+        int length = 0;
+        int count = 0;
+        long last; // seq of the last posting
+
+        void add(long seq, long base) {
+            if(count > 0 && seq == last) {
+                return; // term seen twice in the message
+            }
+
+            if(length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            }
+            length = writeVarint(bytes, length, seq - (count == 0 ? base : last));
+            last = seq;
+            ++count;
+        }
+    }
+
+    // sealed segment, the postings of terms[i] are data[offsets[i], offsets[i + 1])
+    private static class Segment {
+        final long base; // first seq covered
+        final long end; // seq after the last one covered
+        final int level; // merged level times
+        final String[] terms; // sorted
+        final int[] counts; // postings of each term
+        final int[] offsets;
+        final byte[] data;
+        final long postings;
+
+        Segment(long base, long end, int level, String[] terms, int[] counts, int[] offsets, byte[] data, long postings) {
+            this.base = base;
+            this.end = end;
+            this.level = level;
+            this.terms = terms;
+            this.counts = counts;
+            this.offsets = offsets;
+            this.data = data;
+            this.postings = postings;
+        }
+
+        // index of term, -1 if no message of the segment has it
+        int find(String term) {
+            int i = Arrays.binarySearch(terms, term);
+            return i >= 0 ? i : -1;
+        }
+    }
+
+    private final long maxPostings;
+    private final int maxLevel; // segments of this level are not merged
+    private HashMap<String, Postings> active = new HashMap<String, Postings>();
+    private long activeBase = -1; // first seq of the active segment, -1 if empty
+    private long activeEnd = 0;
+    private int activePostings = 0;
+    private volatile Segment[] sealed = new Segment[0]; // oldest first, replaced (never changed) when sealing or merging
+    private long sealedPostings = 0;
+    private LinkedBlockingQueue<MessageRing.Entry> pending = new LinkedBlockingQueue<MessageRing.Entry>(); // appended to the ring, not indexed yet
+
+    public SearchIndex() {
+        this(DEFAULT_MAX_POSTINGS);
+    }
+
+    public SearchIndex(long maxPostings) {
+        this.maxPostings = Math.max(maxPostings, (long) SEGMENT_POSTINGS * MERGE_FACTOR);
+
+        int level = 0;
+        for(long size = SEGMENT_POSTINGS * MERGE_FACTOR; size <= this.maxPostings / MERGE_FACTOR; size *= MERGE_FACTOR) {
+            ++level;
+        }
+        this.maxLevel = level;
+    }
+
+    // indexes the messages appended to ring from now on, on a thread of its own
+    public void follow(MessageRing ring) {
+        ring.addReader(pending);
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for(;;) {
+                        MessageRing.Entry entry = pending.take();
+                        add(entry.seq, entry.message);
+                    }
+                }
+                catch(InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "chat indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // indexes the message seq, the seqs must increase
+    // (one thread at a time, see follow())
+    public void add(long seq, String message) {
+        synchronized(this) {
+            if(activeBase == -1) {
+                activeBase = seq;
+            }
+            activeEnd = seq + 1;
+
+            for(String term : terms(message)) {
+                Postings postings = active.get(term);
+                if(postings == null) {
+                    postings = new Postings();
+                    active.put(term, postings);
+                }
+
+                int count = postings.count;
+                postings.add(seq, activeBase);
+                activePostings += postings.count - count;
+            }
+        }
+
+        if(activePostings >= SEGMENT_POSTINGS) {
+            seal();
+        }
+    }
+
+    // seqs of the messages holding every term of query, at most limit, the
+    // most recent first
+    public long[] search(String query, int limit) {
+        ArrayList<String> terms = terms(query);
+        long[] results = new long[Math.max(0, limit)];
+        int found = 0;
+
+        if(terms.isEmpty()) {
+            return results;
+        }
+
+        Segment[] segments;
+        synchronized(this) {
+            found = searchActive(terms, results);
+            segments = sealed;
+        }
+
+        for(int s = segments.length - 1; s >= 0 && found < results.length; --s) {
+            found = searchSegment(segments[s], terms, results, found);
+        }
+
+        return Arrays.copyOf(results, found);
+    }
+
+    // number of postings kept (for the messages)
+    public synchronized long size() {
+        return sealedPostings + activePostings;
+    }
+
+    // oldest seq that can be found
+    public synchronized long firstSeq() {
+        Segment[] segments = sealed;
+        return segments.length > 0 ? segments[0].base : activeBase == -1 ? activeEnd : activeBase;
+    }
+
+    // terms of a message or query, each once
+    static ArrayList<String> terms(String text) {
+        ArrayList<String> terms = new ArrayList<String>();
+        int length = text.length();
+
+        for(int i = 0; i < length; ) {
+            if(!Character.isLetterOrDigit(text.charAt(i))) {
+                ++i;
+                continue;
+            }
+
+            int start = i;
+            while(i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                ++i;
+            }
+
+            if(i - start >= MIN_TERM_LENGTH) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase();
+                if(!terms.contains(term)) {
+                    terms.add(term);
+                }
+            }
+        }
+
+        return terms;
+    }
+
+    private int searchActive(ArrayList<String> terms, long[] results) {
+        Postings smallest = null;
+        for(String term : terms) {
+            Postings postings = active.get(term);
+            if(postings == null) {
+                return 0;
+            }
+            if(smallest == null || postings.count < smallest.count) {
+                smallest = postings;
+            }
+        }
+
+        long[] matches = decode(smallest.bytes, 0, smallest.length, activeBase, smallest.count);
+        int size = matches.length;
+        for(String term : terms) {
+            Postings postings = active.get(term);
+            if(postings != smallest) {
+                size = retain(matches, size, postings.bytes, 0, postings.length, activeBase);
+            }
+        }
+
+        return addResults(matches, size, results, 0);
+    }
+
+    private static int searchSegment(Segment segment, ArrayList<String> terms, long[] results, int found) {
+        int[] ids = new int[terms.size()];
+        int smallest = 0;
+
+        for(int t = 0; t < terms.size(); ++t) {
+            ids[t] = segment.find(terms.get(t));
+            if(ids[t] == -1) {
+                return found;
+            }
+            if(segment.counts[ids[t]] < segment.counts[ids[smallest]]) {
+                smallest = t;
+            }
+        }
+
+        int first = ids[smallest];
+        long[] matches = decode(segment.data, segment.offsets[first], segment.offsets[first + 1], segment.base, segment.counts[first]);
+        int size = matches.length;
+        for(int t = 0; t < terms.size() && size > 0; ++t) {
+            if(t != smallest) {
+                size = retain(matches, size, segment.data, segment.offsets[ids[t]], segment.offsets[ids[t] + 1], segment.base);
+            }
+        }
+
+        return addResults(matches, size, results, found);
+    }
+
+    // copies matches[0, size) to results from found, the most recent first,
+    // returns the number of results
+    private static int addResults(long[] matches, int size, long[] results, int found) {
+        for(int i = size - 1; i >= 0 && found < results.length; --i) {
+            results[found++] = matches[i];
+        }
+        return found;
+    }
+
+    // seqs of a posting list, the first difference from base
+    private static long[] decode(byte[] data, int from, int to, long base, int count) {
+        long[] seqs = new long[count];
+        long seq = base;
+        int n = 0;
+
+        for(int position = from; position < to; ) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while(b < 0);
+
+            seq += delta;
+            seqs[n++] = seq;
+        }
+
+        return seqs;
+    }
+
+    // keeps the seqs of matches[0, size) that are also in the posting list,
+    // returns how many are left (at the start of matches)
+    private static int retain(long[] matches, int size, byte[] data, int from, int to, long base) {
+        long seq = base;
+        int kept = 0;
+        int m = 0;
+
+        for(int position = from; position < to && m < size; ) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while(b < 0);
+            seq += delta;
+
+            while(m < size && matches[m] < seq) {
+                ++m;
+            }
+            if(m < size && matches[m] == seq) {
+                matches[kept++] = matches[m++];
+            }
+        }
+
+        return kept;
+    }
+
+    // writes value at position, returns the position after it
+    private static int writeVarint(byte[] data, int position, long value) {
+        while((value & ~0x7FL) != 0) {
+            data[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    // turns the active segment into a sealed one
+    // the active segment is only read (by the searches too) until the new
+    // segments are published, as add() is not called in the meantime
+    private void seal() {
+        String[] terms = active.keySet().toArray(new String[active.size()]);
+        Arrays.sort(terms);
+
+        int[] counts = new int[terms.length];
+        int[] offsets = new int[terms.length + 1];
+        int size = 0;
+        for(int i = 0; i < terms.length; ++i) {
+            size += active.get(terms[i]).length;
+        }
+
+        byte[] data = new byte[size];
+        int position = 0;
+        for(int i = 0; i < terms.length; ++i) {
+            Postings postings = active.get(terms[i]);
+            offsets[i] = position;
+            counts[i] = postings.count;
+            System.arraycopy(postings.bytes, 0, data, position, postings.length);
+            position += postings.length;
+        }
+        offsets[terms.length] = position;
+
+        ArrayList<Segment> segments = new ArrayList<Segment>(Arrays.asList(sealed));
+        segments.add(new Segment(activeBase, activeEnd, 0, terms, counts, offsets, data, activePostings));
+        long postings = sealedPostings + activePostings;
+
+        mergeSegments(segments);
+
+        // the oldest messages go first when over the limit
+        while(postings > maxPostings && segments.size() > 1) {
+            postings -= segments.remove(0).postings;
+        }
+
+        // the messages move from the active segment to the sealed ones at once
+        synchronized(this) {
+            sealed = segments.toArray(new Segment[segments.size()]);
+            sealedPostings = postings;
+
+            active = new HashMap<String, Postings>();
+            activeBase = -1;
+            activePostings = 0;
+        }
+    }
+
+    // merges the last MERGE_FACTOR segments while they have the same level
+    private void mergeSegments(ArrayList<Segment> segments) {
+        for(;;) {
+            int last = segments.size() - 1;
+            if(last + 1 < MERGE_FACTOR) {
+                return;
+            }
+
+            int level = segments.get(last).level;
+            if(level >= maxLevel) {
+                return;
+            }
+            for(int i = last - MERGE_FACTOR + 1; i < last; ++i) {
+                if(segments.get(i).level != level) {
+                    return;
+                }
+            }
+
+            Segment merged = segments.get(last - MERGE_FACTOR + 1);
+            for(int i = last - MERGE_FACTOR + 2; i <= last; ++i) {
+                merged = merge(merged, segments.get(i));
+            }
+
+            for(int i = 0; i < MERGE_FACTOR; ++i) {
+                segments.remove(segments.size() - 1);
+            }
+            segments.add(new Segment(merged.base, merged.end, level + 1, merged.terms, merged.counts, merged.offsets, merged.data, merged.postings));
+        }
+    }
+
+    // one segment for older and newer (newer covers the seqs after older)
+    private static Segment merge(Segment older, Segment newer) {
+        String[] terms = new String[older.terms.length + newer.terms.length];
+        int[] counts = new int[terms.length];
+        int[] offsets = new int[terms.length + 1];
+        byte[] data = new byte[older.data.length + newer.data.length + 10 * newer.terms.length];
+        int position = 0;
+        int n = 0;
+        int o = 0;
+        int w = 0;
+
+        while(o < older.terms.length || w < newer.terms.length) {
+            int order = o == older.terms.length ? 1 : w == newer.terms.length ? -1 : older.terms[o].compareTo(newer.terms[w]);
+            offsets[n] = position;
+
+            if(order <= 0) {
+                // the older list as it is
+                int length = older.offsets[o + 1] - older.offsets[o];
+                System.arraycopy(older.data, older.offsets[o], data, position, length);
+                position += length;
+                terms[n] = older.terms[o];
+                counts[n] = older.counts[o];
+            }
+            else {
+                terms[n] = newer.terms[w];
+            }
+
+            if(order >= 0) {
+                // the newer list, its first difference from the last seq of the older one
+                int from = newer.offsets[w];
+                long first = newer.base;
+                int shift = 0;
+                byte b;
+                do {
+                    b = newer.data[from++];
+                    first += (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while(b < 0);
+
+                long previous = order == 0 ? last(older, o) : older.base;
+                position = writeVarint(data, position, first - previous);
+
+                int length = newer.offsets[w + 1] - from;
+                System.arraycopy(newer.data, from, data, position, length);
+                position += length;
+                counts[n] += newer.counts[w];
+            }
+
+            if(order <= 0) {
+                ++o;
+            }
+            if(order >= 0) {
+                ++w;
+            }
+            ++n;
+        }
+        offsets[n] = position;
+
+        return new Segment(older.base, newer.end, older.level, Arrays.copyOf(terms, n), Arrays.copyOf(counts, n),
+                           Arrays.copyOf(offsets, n + 1), Arrays.copyOf(data, position), older.postings + newer.postings);
+    }
+
+    // seq of the last posting of term i
+    private static long last(Segment segment, int i) {
+        long seq = segment.base;
+        int shift = 0;
+
+        for(int position = segment.offsets[i]; position < segment.offsets[i + 1]; ++position) {
+            seq += (long) (segment.data[position] & 0x7F) << shift;
+            shift = segment.data[position] < 0 ? shift + 7 : 0;
+        }
+
+        return seq;
+    }
+}
@@ -6,6 +6,7 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -13,22 +14,27 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
 public class ServerSocketManager {
-	public static final int MAXCLIENTS = 10;  // Maximum number of clients - static variable and public
+	public static final int BACKLOG = 1024; // connections waiting to be accepted
 
 	private ServerSocket serverSocket = null;  // Socket for listening to incoming connections
 
-	private Socket[] clients = new Socket[MAXCLIENTS];  // Used to maintain up to 10 clients (i.e. Socket objects)
-    private PrintWriter[] writers = new PrintWriter[MAXCLIENTS]; // For writing to sockets
-    private BufferedReader[] readers = new BufferedReader[MAXCLIENTS]; // For reading from sockets
+	// Socket, reader and writer of a client
+	private static class Client {
+		Socket socket;
+		OutputStream out; // For writing bytes already encoded
+		PrintWriter writer; // For writing to the socket
+		BufferedReader reader; // For reading from the socket
+	}
 
-	private int clientCount = 0;
+	private ClientRegistry<Client> clients = new ClientRegistry<Client>(); // no limit on the number of clients
+	private int nextPoll = 0; // index where pollClients() starts looking
 
     // Constructor
     // Setup the ServerSocket object
     // Need to configure a timout of 1000 ms so that listening on the ServerSocket is not blocked
     // See the API documentation in the Java API docummentation for ServerSocket
     public ServerSocketManager(int portNumber) throws IOException {
-		serverSocket = new ServerSocket(portNumber);
+		serverSocket = new ServerSocket(portNumber, BACKLOG);
 		serverSocket.setSoTimeout(1000); // timeout 1000 ms
     }
 
@@ -38,10 +44,8 @@ public class ServerSocketManager {
     // then:
     //   1) Create a BufferReader object to read from the Socket
     //   2) Create a PrintWriter object to write to the Socket
-    //   3) Find a client id (to serve as an index into the three arrays) - the method
-    //      getFreeClientId() has been provided for this.
-    //   4) Add the Socket, BufferedReader, and PrintWriter to the appropriate
-    //      arrays (clients, writer, reader
+    //   3) Add the Socket, BufferedReader, and PrintWriter to the client
+    //      registry, which gives the client id
     public int listenOnSocket() throws IOException {
 		Socket socket = null;
 
@@ -55,18 +59,14 @@ public class ServerSocketManager {
 		}
 
 		// now we have a socket so create readers and writers
-		PrintWriter writer = new PrintWriter(socket.getOutputStream());
-		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-		// get free client id, duh
-		int cid = getFreeClientId();
-		clients[cid] = socket;
-		writers[cid] = writer;
-		readers[cid] = reader;
-
-		++clientCount;
-
-		return cid;
+		Client client = new Client();
+		client.socket = socket;
+		client.out = socket.getOutputStream();
+		client.writer = new PrintWriter(client.out);
+		client.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+		// get client id, duh
+		return clients.add(client);
     }
 
     // Read string from socket
@@ -74,19 +74,26 @@ public class ServerSocketManager {
     // Note that pollClients() below can be used to determine
     // which clients have input waiting.
     // Notes:
-    //    1) Do check that the clients' entry is not null
-    //    2) If a SocketException occurs, assume that the connection is closed
-    //       and free up the entries in the arrays, and decrement clientCount.
+    //    1) Do check that the client is in the registry
+    //    2) If a SocketException occurs or the client closed the connection,
+    //       remove the client from the registry.
     public String readClient(int cid) throws IOException {
+		Client client = clients.get(cid);
 
-		if(clients[cid] == null) {
+		if(client == null) {
 			return null;
 		}
 
 		try {
-			String line = readers[cid].readLine();
+			String line = client.reader.readLine();
 
-			if(line == null || line.length() == 0) {
+			if(line == null) {
+				// client closed the connection
+				client.socket.close();
+				wipeClient(cid);
+				return null;
+			}
+			else if(line.length() == 0) {
 				return null;
 			}
 			else {
@@ -96,7 +103,7 @@ public class ServerSocketManager {
 
 		// client is dead (gone)
 		catch(SocketException e) {
-			clients[cid].close();
+			client.socket.close();
 			wipeClient(cid);
 
 			return null;
@@ -107,11 +114,17 @@ public class ServerSocketManager {
     // Returns a client id of a connection with received data, and -1 if no data exists for any data
     // This method is provided - do consult the documentation on the ready() method (BufferedInput) to
     // understand the method.
+    // The search starts after the client returned last, so the clients take
+    // turns instead of the first ones always being served first.
     public int pollClients() throws IOException {
+		int count = clients.size();
 
 		// find a reader that's ready
-    	for(int id = 0; id < MAXCLIENTS; ++id) {
-    		if(clients[id] != null && readers[id].ready()) {
+    	for(int n = 0; n < count; ++n) {
+    		int i = (nextPoll + n) % count;
+    		int id = clients.idAt(i);
+    		if(clients.get(id).reader.ready()) {
+				nextPoll = i + 1;
 				return id;
     		}
     	}
@@ -123,48 +136,57 @@ public class ServerSocketManager {
     // Write to the Socket using the ReadWriter object
     // Do check that the clientid is valid
     public void writeClient(int cid, String stream) throws IOException {
-		if(clients[cid] != null) {
-			writers[cid].println(stream);
-			writers[cid].flush();
+		Client client = clients.get(cid);
+		if(client != null) {
+			client.writer.println(stream);
+			client.writer.flush();
+		}
+    }
+
+    // Write bytes already encoded (e.g. the same line for every client)
+    // The writer is flushed after every line so the bytes are not mixed
+    public void writeClient(int cid, byte[] bytes) throws IOException {
+		Client client = clients.get(cid);
+		if(client != null) {
+			try {
+				client.out.write(bytes);
+				client.out.flush();
+			}
+			catch(SocketException e) {
+				client.socket.close(); // removed by closeConnections()
+			}
 		}
     }
 
     // Returns true if connection closed
     public boolean isClosed(int clientid) {
-    	boolean retval = true;
-    	if(clients[clientid] != null && clients[clientid].isClosed() != true)
-    		retval = false;
-    	return(retval);
+    	Client client = clients.get(clientid);
+    	return client == null || client.socket.isClosed();
+    }
+
+    // Number of connected clients
+    public int getClientCount() {
+    	return clients.size();
+    }
+
+    // Id of the i-th connected client, 0 <= i < getClientCount()
+    public int getClientId(int i) {
+    	return clients.idAt(i);
     }
 
     // Checks for closed connections - cleans up sockets
     // Provided.
     public void closeConnections() throws IOException {
-    	for(int id = 0; id < MAXCLIENTS; ++id) {
-    		if(clients[id] != null && clients[id].isClosed()) {
+    	for(int i = clients.size() - 1; i >= 0; --i) { // backwards, removing moves the last client
+    		int id = clients.idAt(i);
+    		if(clients.get(id).socket.isClosed()) {
     			wipeClient(id);
     		}
 		}
     }
 
 	private void wipeClient(int cid) {
-		clients[cid] = null;
-		writers[cid] = null;
-		readers[cid] = null;
-
-		--clientCount;
+		clients.remove(cid);
 	}
 
-    // Finds the index in the clients array that is null
-    // provided.
-    private int getFreeClientId() {
-    	int id = -1;
-
-    	for(int ix=0 ; ix < MAXCLIENTS && id == -1; ix++) {
-    		if(clients[ix] == null) id = ix;
-    	}
-
-    	return(id);
-    }
-
 }
@@ -0,0 +1,163 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Line encoded once and written to many clients.
+ * Every client queue that holds the buffer takes a reference (retain()) and
+ * gives it back once the bytes are written (release()).  After the last
+ * release the memory goes back to a pool for the next message, so a
+ * broadcast costs one encoding and no copy per recipient.
+ * The content is never modified, each writer uses its own view().
+ */
+public final class SharedBuffer {
+
+    private static final int MIN_CLASS = 6; // 64 bytes
+    private static final int MAX_CLASS = 16; // 64 KB, bigger buffers are not pooled
+    private static final int POOLED_PER_CLASS = 256;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayBlockingQueue<ByteBuffer>[] pool = new ArrayBlockingQueue[MAX_CLASS + 1];
+    static {
+        for(int c = MIN_CLASS; c <= MAX_CLASS; ++c) {
+            pool[c] = new ArrayBlockingQueue<ByteBuffer>(POOLED_PER_CLASS);
+        }
+    }
+
+    private static final ThreadLocal<CharsetEncoder> encoder = new ThreadLocal<CharsetEncoder>() {
+        protected CharsetEncoder initialValue() {
+            return StandardCharsets.UTF_8.newEncoder();
+        }
+    };
+
+    private final ByteBuffer data; // position 0 to limit is the content
+    private final AtomicInteger refCount;
+
+    private SharedBuffer(ByteBuffer data, int refCount) {
+        this.data = data;
+        this.refCount = new AtomicInteger(refCount);
+    }
+
+    // encodes line + "\n", the caller holds the first reference
+    public static SharedBuffer encode(String line) {
+        CharsetEncoder utf8 = encoder.get();
+        ByteBuffer data = acquire((int) (line.length() * utf8.maxBytesPerChar()) + 1);
+
+        utf8.reset();
+        utf8.encode(CharBuffer.wrap(line), data, true);
+        utf8.flush(data);
+        data.put((byte) '\n');
+        data.flip();
+
+        return new SharedBuffer(data, 1);
+    }
+
+    // encodes line as a ChatFrame, the caller holds the first reference
+    public static SharedBuffer encodeFrame(String line) {
+        CharsetEncoder utf8 = encoder.get();
+        ByteBuffer data = acquire((int) ((line.length() - 3) * utf8.maxBytesPerChar()) + ChatFrame.HEADER_SIZE);
+
+        data.put(ChatFrame.typeOf(line));
+        data.position(ChatFrame.HEADER_SIZE);
+        utf8.reset();
+        utf8.encode(CharBuffer.wrap(line, 3, line.length()), data, true);
+        utf8.flush(data);
+        data.putInt(1, data.position() - ChatFrame.HEADER_SIZE);
+        data.flip();
+
+        return new SharedBuffer(data, 1);
+    }
+
+    // same, with the payload compressed if it is worth it (see Compression)
+    public static SharedBuffer encodeFrame(String line, boolean deflate) {
+        if(!deflate || line.length() - 3 < Compression.THRESHOLD / 3) {
+            return encodeFrame(line); // too short even in 3 byte characters
+        }
+
+        byte[] compressed = Compression.deflate(line.substring(3).getBytes(StandardCharsets.UTF_8));
+        if(compressed == null) {
+            return encodeFrame(line);
+        }
+
+        ByteBuffer data = acquire(ChatFrame.HEADER_SIZE + compressed.length);
+        data.put((byte) (ChatFrame.typeOf(line) | ChatFrame.COMPRESSED));
+        data.putInt(compressed.length);
+        data.put(compressed);
+        data.flip();
+
+        return new SharedBuffer(data, 1);
+    }
+
+    // buffer that is never released, for lines sent all the time (POL)
+    public static SharedBuffer constant(String line) {
+        return constant(encode(line));
+    }
+
+    // same as a ChatFrame
+    public static SharedBuffer constantFrame(String line) {
+        return constant(encodeFrame(line));
+    }
+
+    private static SharedBuffer constant(SharedBuffer buffer) {
+        buffer.refCount.set(Integer.MAX_VALUE / 2);
+        return buffer;
+    }
+
+    public SharedBuffer retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if(refCount.decrementAndGet() == 0) {
+            recycle(data);
+        }
+    }
+
+    // read only view with its own position, for one writer
+    public ByteBuffer view() {
+        return data.asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return data.limit();
+    }
+
+    private static ByteBuffer acquire(int size) {
+        int c = sizeClass(size);
+
+        if(c > MAX_CLASS) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer = pool[c].poll();
+        if(buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << c);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void recycle(ByteBuffer buffer) {
+        int c = sizeClass(buffer.capacity());
+
+        if(c <= MAX_CLASS && buffer.capacity() == 1 << c) {
+            pool[c].offer(buffer); // dropped if the pool is full
+        }
+    }
+
+    // smallest power of two class that holds size bytes
+    private static int sizeClass(int size) {
+        int c = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(c, MIN_CLASS);
+    }
+}
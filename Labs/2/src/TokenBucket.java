@@ -0,0 +1,51 @@
+/*
+ * Yann Landry, 7603630
+ * Jonathan Guillotte-Blouin, 7900293
+ */
+
+/*
+ * Rate limit of one client: the bucket fills with rate tokens per second,
+ * up to burst, and each message takes one.  take() can leave the bucket in
+ * debt (an ACK carrying several messages), the client then waits until it
+ * is paid back.
+ * Works on System.nanoTime(), nothing is allocated.  Not thread safe, a
+ * bucket belongs to the thread of its client.
+ */
+public class TokenBucket {
+
+    private final double perNano; // tokens added per ns
+    private final double burst;
+    private double tokens;
+    private long last; // time of the last refill
+
+    public TokenBucket(double perSecond, int burst) {
+        this.perNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.last = System.nanoTime();
+    }
+
+    // true if a message can be taken now
+    public boolean available(long now) {
+        refill(now);
+        return tokens >= 1;
+    }
+
+    public void take(long now, int count) {
+        refill(now);
+        tokens -= count;
+    }
+
+    // time until a message can be taken, 0 if now
+    public long nanosUntilAvailable(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+    }
+
+    private void refill(long now) {
+        if(now > last) {
+            tokens = Math.min(burst, tokens + (now - last) * perNano);
+            last = now;
+        }
+    }
+}
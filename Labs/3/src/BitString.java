@@ -145,7 +145,7 @@ public class BitString
 			// only want to display first 4 bytes and last 2 bytes
 			// Adjust ix to point to the last two bytes after the first 
 			// 4 bytes have been displayed
-			if(frame.length() > 7 && ix == 4*8) 
+			if(frame.length() > 7*8 && ix == 4*8) 
 			{
 				ix = frame.length()-2*8;
 				display = display+ " ... "; // shows undisplayed data
@@ -0,0 +1,173 @@
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/* Impairment stage for the simulated multi-point physical layer
+ * Frames relayed by the PhysicalLayerServer are passed through this stage
+ * before being written to the destination nodes.  The following can be set:
+ *   1) propagation delay (ms) - added to every frame
+ *   2) serialization rate (bits/sec) - the medium is shared (half-duplex), so
+ *      a frame cannot start until the previous frame has left the medium
+ *   3) frame loss probability - applied to each copy of a frame
+ *   4) bit error rate - each bit of a copy is inverted with this probability
+ *   5) duplication probability - a copy is delivered twice
+ * All random decisions are taken from a single seeded generator in the order
+ * the frames are received, so the same seed and the same frame sequence
+ * always give the same losses, errors and duplicates.
+ */
+public class ChannelImpairment
+{
+	// Settings
+	private double delayMs = 0;         // propagation delay
+	private double rateBps = 0;         // serialization rate, 0 means infinite
+	private double lossProb = 0;        // probability a copy of a frame is lost
+	private double bitErrorRate = 0;    // probability a bit is inverted
+	private double dupProb = 0;         // probability a copy of a frame is duplicated
+	private long seed = 1;
+	private Random random;
+	// State
+	private long mediumFreeAt = 0;  // time (ns) at which the medium is free to carry the next frame
+	private long order = 0;         // breaks ties between deliveries due at the same time
+	private PriorityQueue<Delivery> pending = new PriorityQueue<Delivery>();
+	// Statistics
+	private long framesOffered = 0;
+	private long framesLost = 0;
+	private long framesDuplicated = 0;
+	private long framesCorrupted = 0;
+	private long bitsInverted = 0;
+
+	// A frame waiting to be delivered to a node
+	public static class Delivery implements Comparable<Delivery>
+	{
+		public final long due;     // System.nanoTime() at which the frame reaches the node
+		public final long order;
+		public final int srcId;    // client id of the node that sent the frame
+		public final int destId;   // client id of the destination node
+		public final String frame;
+
+		Delivery(long due, long order, int srcId, int destId, String frame)
+		{
+			this.due = due;
+			this.order = order;
+			this.srcId = srcId;
+			this.destId = destId;
+			this.frame = frame;
+		}
+
+		public int compareTo(Delivery other)
+		{
+			if(due != other.due) return(due < other.due ? -1 : 1);
+			return(order < other.order ? -1 : (order == other.order ? 0 : 1));
+		}
+	}
+
+	public ChannelImpairment()
+	{
+		random = new Random(seed);
+	}
+
+	// Builds the impairment stage from the command line arguments of the server
+	//   -delay <ms> -rate <bits/sec> -loss <prob> -ber <prob> -dup <prob> -seed <long>
+	// Unknown arguments are ignored so the server can have its own options.
+	public static ChannelImpairment fromArgs(String[] args)
+	{
+		ChannelImpairment channel = new ChannelImpairment();
+		for(int ix = 0; ix+1 < args.length; ix++)
+		{
+			String value = args[ix+1];
+			if(args[ix].equals("-delay")) channel.delayMs = Double.parseDouble(value);
+			else if(args[ix].equals("-rate")) channel.rateBps = Double.parseDouble(value);
+			else if(args[ix].equals("-loss")) channel.lossProb = Double.parseDouble(value);
+			else if(args[ix].equals("-ber")) channel.bitErrorRate = Double.parseDouble(value);
+			else if(args[ix].equals("-dup")) channel.dupProb = Double.parseDouble(value);
+			else if(args[ix].equals("-seed")) channel.seed = Long.parseLong(value);
+			else continue;
+			ix++; // skip the value
+		}
+		channel.random = new Random(channel.seed);
+		return(channel);
+	}
+
+	// Returns true if any impairment is configured, otherwise frames
+	// can be relayed directly.
+	public boolean isActive()
+	{
+		return(delayMs > 0 || rateBps > 0 || lossProb > 0 || bitErrorRate > 0 || dupProb > 0);
+	}
+
+	// Offers a frame received from node srcId to the medium.  Each destination gets
+	// its own copy of the frame which can be lost, duplicated or corrupted.
+	// The frame is carried once on the medium, so the serialization time is
+	// only counted once for all destinations.
+	public void transmit(String frame, int srcId, int[] destIds, int destCount, long now)
+	{
+		long txStart = Math.max(now, mediumFreeAt);
+		long txTime = (rateBps > 0) ? (long) (frame.length()*1e9/rateBps) : 0; // one char is one bit
+		mediumFreeAt = txStart + txTime;
+		long arrival = mediumFreeAt + (long) (delayMs*1e6);
+
+		for(int ix = 0; ix < destCount; ix++)
+		{
+			framesOffered++;
+			if(lossProb > 0 && random.nextDouble() < lossProb)
+			{
+				framesLost++;
+				continue;
+			}
+			int copies = 1;
+			if(dupProb > 0 && random.nextDouble() < dupProb)
+			{
+				framesDuplicated++;
+				copies = 2;
+			}
+			for(int copy = 0; copy < copies; copy++)
+			{
+				// a duplicate follows the original on the medium
+				pending.add(new Delivery(arrival+copy*txTime, order++, srcId, destIds[ix], corrupt(frame)));
+			}
+		}
+	}
+
+	// Returns the next delivery that is due at time now, null if none.
+	public Delivery nextDue(long now)
+	{
+		Delivery next = pending.peek();
+		if(next != null && next.due <= now) return(pending.poll());
+		return(null);
+	}
+
+	// Number of frames in transit
+	public int pendingCount()
+	{
+		return(pending.size());
+	}
+
+	// Inverts bits according to the bit error rate. The gap between errors is
+	// drawn from a geometric distribution so only one random number is needed
+	// per inverted bit rather than one per bit.
+	private String corrupt(String frame)
+	{
+		if(bitErrorRate <= 0) return(frame);
+		char[] bits = null;
+		double logq = Math.log(1.0 - bitErrorRate);
+		long ix = (bitErrorRate >= 1) ? 0 : (long) (Math.log(1.0 - random.nextDouble())/logq);
+		while(ix < frame.length())
+		{
+			if(bits == null) bits = frame.toCharArray();
+			int i = (int) ix;
+			bits[i] = (bits[i] == '0') ? '1' : '0';
+			bitsInverted++;
+			ix += 1 + ((bitErrorRate >= 1) ? 0 : (long) (Math.log(1.0 - random.nextDouble())/logq));
+		}
+		if(bits == null) return(frame);
+		framesCorrupted++;
+		return(new String(bits));
+	}
+
+	public String toString()
+	{
+		return("Channel: delay="+delayMs+"ms rate="+rateBps+"bps loss="+lossProb+
+		       " ber="+bitErrorRate+" dup="+dupProb+" seed="+seed+
+		       " | offered="+framesOffered+" lost="+framesLost+" duplicated="+framesDuplicated+
+		       " corrupted="+framesCorrupted+" bitsInverted="+bitsInverted);
+	}
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/* Bounded queue of frames waiting to be written to one client of the
+ * ServerSocketManager.
+ * A writer thread takes the frames from the queue and writes them to the
+ * socket, so a client that does not read its socket only fills its own
+ * queue and never blocks the thread that relays the frames.
+ * All frames waiting in the queue are written before the socket is flushed.
+ */
+public class ClientOutputQueue implements Runnable
+{
+	private Socket socket;
+	private PrintWriter out;
+	private ArrayBlockingQueue<String> queue;
+	private Thread writer;
+	private volatile boolean closed = false;
+	// Statistics
+	private volatile int maxDepth = 0;   // largest number of frames waiting in the queue
+	private volatile long dropped = 0;   // frames that did not fit in the queue
+	private volatile long written = 0;   // frames written to the socket
+
+	// Constructor - starts the writer thread
+	public ClientOutputQueue(int clientid, Socket socket, PrintWriter out, int capacity)
+	{
+		this.socket = socket;
+		this.out = out;
+		queue = new ArrayBlockingQueue<String>(capacity);
+		writer = new Thread(this, "ClientOutputQueue-"+clientid);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Adds a frame to the queue, returns false if the queue is full
+	// (the frame is then counted as dropped).
+	public boolean offer(String frame)
+	{
+		if(closed) return(false);
+		boolean added = queue.offer(frame);
+		if(added)
+		{
+			int depth = queue.size();
+			if(depth > maxDepth) maxDepth = depth;
+		}
+		else dropped++;
+		return(added);
+	}
+
+	// Returns true if another frame can be queued
+	public boolean hasRoom()
+	{
+		return(queue.remainingCapacity() > 0);
+	}
+
+	// Stops the writer thread, frames still queued are discarded.
+	public void close()
+	{
+		closed = true;
+		writer.interrupt();
+	}
+
+	public int getDepth() { return queue.size(); }
+	public int getCapacity() { return queue.size()+queue.remainingCapacity(); }
+	public int getMaxDepth() { return maxDepth; }
+	public long getDropped() { return dropped; }
+	public long getWritten() { return written; }
+
+	// Writer thread
+	public void run()
+	{
+		try {
+			while(!closed)
+			{
+				String frame = queue.take(); // wait for a frame
+				do {
+					out.println(frame);  // need line feed so that readLine() sees the line
+					written++;
+				} while((frame = queue.poll()) != null);
+				out.flush();
+				if(out.checkError()) // connection lost - let closeConnections() clean up
+				{
+					closed = true;
+					socket.close();
+				}
+			}
+		}
+		catch (InterruptedException e) { } // closed
+		catch (IOException e) { closed = true; }
+	}
+}
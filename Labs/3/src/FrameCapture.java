@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Records the frames relayed by the PhysicalLayerServer to a capture file.
+ * The file is append-only and written through memory mapped regions, so
+ * recording a frame is a copy into memory - there is no system call per frame.
+ * Format (big endian):
+ *   Header: magic (8 bytes "HDLCCAP2"), capture start time (long, ms since epoch)
+ *   Record: time since start of capture (long, ns), source client id (int),
+ *           frame length plus one (int), frame (one byte per character)
+ * The length is stored plus one so that an empty frame is recorded too:
+ * a record with 0 there marks the end of the capture (the unused part of
+ * the last region is all zeros, when the server did not close the capture).
+ * See FrameReplay to read a capture.
+ */
+public class FrameCapture
+{
+	public static final String MAGIC = "HDLCCAP2";
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_HEADER_SIZE = 16;
+	private static final int REGION_SIZE = 8*1024*1024; // size of each mapped region
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer region;  // region being written
+	private long regionStart;         // file position of the region
+	private long startNanos;          // System.nanoTime() at the start of the capture
+	private long frameCount = 0;
+
+	// Constructor - creates (or truncates) the capture file
+	public FrameCapture(String fileName) throws IOException
+	{
+		file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		regionStart = 0;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+		startNanos = System.nanoTime();
+		for(int ix = 0; ix < MAGIC.length(); ix++) region.put((byte) MAGIC.charAt(ix));
+		region.putLong(System.currentTimeMillis());
+	}
+
+	// Appends a frame received from client clientid
+	public synchronized void record(int clientid, String frame) throws IOException
+	{
+		if(region == null) return; // closed
+		int size = RECORD_HEADER_SIZE + frame.length();
+		if(region.remaining() < size) nextRegion(size);
+		region.putLong(System.nanoTime() - startNanos);
+		region.putInt(clientid);
+		region.putInt(frame.length()+1);
+		for(int ix = 0; ix < frame.length(); ix++) region.put((byte) frame.charAt(ix));
+		frameCount++;
+	}
+
+	public long getFrameCount() { return frameCount; }
+
+	// Closes the capture, the file is truncated to the recorded frames.
+	// Called from a shutdown hook when the server is stopped.
+	public synchronized void close() throws IOException
+	{
+		if(region == null) return;
+		long length = regionStart + region.position();
+		region.force();
+		region = null;
+		channel.truncate(length);
+		channel.close();
+		file.close();
+	}
+
+	// Maps the region following the data already written.
+	private void nextRegion(int size) throws IOException
+	{
+		regionStart += region.position();
+		region.force();
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, size));
+	}
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Replays a capture file recorded by the PhysicalLayerServer (see FrameCapture).
+ * Connects to the Physical Layer Server like a station and transmits the
+ * captured frames, so the data link entities connected to the server receive
+ * them again.  Useful for repeating the same exchange when measuring performance.
+ * Usage:
+ *   java FrameReplay <capture file> [-max] [-client <id>]
+ *     -max          transmit as fast as possible (default: at the recorded times)
+ *     -client <id>  only replay the frames sent by that client
+ */
+public class FrameReplay
+{
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: java FrameReplay <capture file> [-max] [-client <id>]");
+			return;
+		}
+		boolean maxSpeed = false;
+		int client = -1; // all clients
+		for(int ix = 1; ix < args.length; ix++)
+		{
+			if(args[ix].equals("-max")) maxSpeed = true;
+			else if(args[ix].equals("-client") && ix+1 < args.length) client = Integer.parseInt(args[++ix]);
+		}
+
+		// Map the capture file
+		RandomAccessFile file = new RandomAccessFile(args[0], "r");
+		FileChannel channel = file.getChannel();
+		MappedByteBuffer capture = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		byte[] magic = new byte[FrameCapture.MAGIC.length()];
+		capture.get(magic);
+		if(new String(magic, "ISO-8859-1").equals(FrameCapture.MAGIC) == false)
+		{
+			System.out.println("FrameReplay: "+args[0]+" is not a capture file");
+			file.close();
+			return;
+		}
+		capture.getLong(); // start time of the capture
+
+		// Connect to the physical layer server
+		ClientSocketManager medium = new ClientSocketManager();
+		medium.connect("0", PhysicalLayerServer.PL_PORT);
+
+		long frames = 0;
+		long start = System.nanoTime();
+		long firstTime = -1;  // time of the first replayed frame in the capture
+		char[] chars = new char[256];
+		while(capture.remaining() >= FrameCapture.RECORD_HEADER_SIZE)
+		{
+			long time = capture.getLong();
+			int id = capture.getInt();
+			int length = capture.getInt() - 1; // stored plus one
+			if(length < 0) break; // end of capture
+			if(chars.length < length) chars = new char[length];
+			for(int ix = 0; ix < length; ix++) chars[ix] = (char) (capture.get() & 0xff);
+			if(client != -1 && id != client) continue;
+
+			if(maxSpeed == false)
+			{   // wait until the frame is due
+				if(firstTime == -1) firstTime = time;
+				long wait = (time - firstTime) - (System.nanoTime() - start);
+				if(wait > 0) Thread.sleep(wait/1000000, (int) (wait%1000000));
+			}
+			medium.write(new String(chars, 0, length));
+			frames++;
+		}
+		double seconds = (System.nanoTime() - start)/1e9;
+		System.out.println("FrameReplay: replayed "+frames+" frames in "+seconds+" s ("+(frames/seconds)+" frames/sec)");
+		medium.close();
+		file.close();
+	}
+}
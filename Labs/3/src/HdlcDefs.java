@@ -49,4 +49,15 @@ public class HdlcDefs
 	public static final int SNUM_SIZE_BITS = 3;   // number of bits for the sequence number
 	public static final int SNUM_SIZE_COUNT = 8;  // the number of sequence numbers = 2^SNUM_SIZE_BITS
 	public static final int FLAG_SIZE_BITS = 8;   // number of bits in the flag
+
+	/*------------ Options -----------------------------*/
+	// Information field of SNRM (offered by the primary) and UA (accepted by
+	// the secondary): one byte of option bits.  A frame without it offers nothing.
+	public static final int OPTIONS_SIZE_BITS = 8;
+	public static final int OPT_DEFLATE = 1;  // compressed SDUs - see SduCompression
+	// First byte of an SDU with OPT_DEFLATE
+	public static final int SDU_PLAIN = 0;
+	public static final int SDU_DEFLATED = 1;
+	public static final int DEFLATE_THRESHOLD_BYTES = 64;  // smaller SDUs are not compressed
+	public static final int MAX_INFLATED_BYTES = 1024*1024;  // a compressed SDU inflating to more is refused
 }
@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+/* Histogram of latencies (or any positive long) with a fixed relative
+ * precision, in the style of HdrHistogram: values below SUB_BUCKETS are
+ * counted exactly, bigger ones in buckets 1/64 of their power of two wide
+ * (about 1.5% error).  The buckets are allocated once and record() does not
+ * allocate, so it can be called for every frame.
+ * Same histogram as the one of the chat server (Lab 2).
+ * Not thread safe - see LinkStatistics for the locking.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS; // 128
+	private static final int HALF = SUB_BUCKETS/2;
+	private static final int BUCKETS = 64*HALF + SUB_BUCKETS;
+
+	private long[] counts = new long[BUCKETS];
+	private long count = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+	private double sum = 0;
+
+	public void record(long value)
+	{
+		if(value < 0) value = 0;
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if(value < min) min = value;
+		if(value > max) max = value;
+	}
+
+	// Adds the values of other to this histogram
+	public void add(LatencyHistogram other)
+	{
+		for(int ix = 0; ix < BUCKETS; ix++) counts[ix] += other.counts[ix];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public void reset()
+	{
+		Arrays.fill(counts, 0);
+		count = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+		sum = 0;
+	}
+
+	public long getCount() { return(count); }
+	public long getMin() { return(count == 0 ? 0 : min); }
+	public long getMax() { return(max); }
+	public double getMean() { return(count == 0 ? 0 : sum/count); }
+
+	// Value at or below which the fraction p (0 to 1) of the values are
+	public long getPercentile(double p)
+	{
+		if(count == 0) return(0);
+		long rank = Math.max(1, (long) Math.ceil(p*count));
+		long seen = 0;
+		for(int ix = 0; ix < BUCKETS; ix++)
+		{
+			seen += counts[ix];
+			if(seen >= rank) return(Math.min(highest(ix), max));
+		}
+		return(max);
+	}
+
+	// One line summary, values divided by unit (e.g. 1e6 for ns -> ms)
+	public String summary(double unit, String unitName)
+	{
+		return(String.format("count=%d min=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f mean=%.3f (%s)",
+		       count, getMin()/unit, getPercentile(0.50)/unit, getPercentile(0.90)/unit,
+		       getPercentile(0.99)/unit, getPercentile(0.999)/unit, getMax()/unit, getMean()/unit, unitName));
+	}
+
+	// Values below SUB_BUCKETS have their own bucket, after that each power
+	// of two is split in HALF buckets
+	private static int index(long value)
+	{
+		if(value < SUB_BUCKETS) return((int) value);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return(shift*HALF + (int) (value >> shift)); // value >> shift is in [HALF, SUB_BUCKETS)
+	}
+
+	// Biggest value counted in bucket ix
+	private static long highest(int ix)
+	{
+		if(ix < SUB_BUCKETS) return(ix);
+		int shift = ix/HALF - 1;
+		long top = ix - shift*HALF;
+		return(((top + 1) << shift) - 1);
+	}
+}
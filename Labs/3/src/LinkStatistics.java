@@ -0,0 +1,179 @@
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* Per station statistics of a data link entity (primary or secondary).
+ * Counters of the frames exchanged with each station address and a latency
+ * histogram:
+ *   secondary - time from the first transmission of an I frame to its
+ *               acknowledgement (RR), retransmissions included
+ *   primary   - time from the poll (RR with P bit) to the last I frame of
+ *               the message (F bit)
+ * Read with snapshot() or through JMX (HDLC:type=LinkStatistics,name=...).
+ * The data link thread updates the statistics while JMX reads them, all the
+ * methods are synchronized (the lock is never contended by the data link).
+ */
+public class LinkStatistics implements LinkStatisticsMBean
+{
+	// Counters
+	public static final int I_SENT = 0;
+	public static final int I_RECEIVED = 1;
+	public static final int I_RETRANSMITTED = 2;
+	public static final int RR_SENT = 3;
+	public static final int RR_RECEIVED = 4;
+	public static final int DISCARDED = 5;     // I frames dropped (duplicate or out of sequence)
+	public static final int WINDOW_STALLS = 6; // transmit window closed with frames left to send
+	public static final int SDU_BYTES = 7;     // bytes of the SDUs sent or received (user data)
+	public static final int DATA_BYTES = 8;    // bytes in the data field of the I frames for them (first transmission)
+	public static final int DUPLICATE_ACKS = 9; // RR received that acknowledged no new frame
+	public static final int COUNTERS = 10;
+	public static final String[] COUNTER_NAMES = { "I sent", "I received", "I retransmitted",
+	                                               "RR sent", "RR received", "discarded", "window stalls",
+	                                               "SDU bytes", "data bytes", "duplicate acks" };
+
+	public static final int MAX_ADR = 1 << HdlcDefs.ADR_SIZE_BITS;
+
+	private final String role;
+	private long[][] counters = new long[MAX_ADR][];         // by station address, null if no activity
+	private LatencyHistogram[] latencies = new LatencyHistogram[MAX_ADR];
+	private ObjectName name = null; // when registered
+
+	// Statistics of one station at some point in time
+	public static class Snapshot
+	{
+		public final int address;
+		public final long[] counters;
+		public final LatencyHistogram latency;
+
+		private Snapshot(int address, long[] counters, LatencyHistogram latency)
+		{
+			this.address = address;
+			this.counters = counters;
+			this.latency = latency;
+		}
+
+		public long get(int counter) { return(counters[counter]); }
+
+		public String toString()
+		{
+			String str = "station "+address+":";
+			for(int ix = 0; ix < COUNTERS; ix++) str += " "+COUNTER_NAMES[ix]+"="+counters[ix];
+			return(str+", latency "+latency.summary(1e6, "ms"));
+		}
+	}
+
+	public LinkStatistics(String role)
+	{
+		this.role = role;
+	}
+
+	// Registers with the platform MBean server as HDLC:type=LinkStatistics,name=<name>
+	// Errors (e.g. name already used) are only displayed
+	public synchronized void register(String mbeanName)
+	{
+		try {
+			name = new ObjectName("HDLC:type=LinkStatistics,name="+mbeanName);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			System.out.println("LinkStatistics: could not register "+mbeanName+": "+e);
+			name = null;
+		}
+	}
+
+	public synchronized void unregister()
+	{
+		if(name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) { }
+		name = null;
+	}
+
+	public synchronized void count(int adr, int counter)
+	{
+		station(adr)[counter]++;
+	}
+
+	public synchronized void count(int adr, int counter, int n)
+	{
+		station(adr)[counter] += n;
+	}
+
+	public synchronized void recordLatency(int adr, long nanos)
+	{
+		station(adr);
+		latencies[adr].record(nanos);
+	}
+
+	// Statistics of the station at adr (all zeros if no activity)
+	public synchronized Snapshot snapshot(int adr)
+	{
+		LatencyHistogram latency = new LatencyHistogram();
+		if(counters[adr] == null) return(new Snapshot(adr, new long[COUNTERS], latency));
+		latency.add(latencies[adr]);
+		return(new Snapshot(adr, counters[adr].clone(), latency));
+	}
+
+	// Statistics of all the stations added together (address 0)
+	public synchronized Snapshot total()
+	{
+		long[] total = new long[COUNTERS];
+		LatencyHistogram latency = new LatencyHistogram();
+		for(int adr = 0; adr < MAX_ADR; adr++)
+		{
+			if(counters[adr] == null) continue;
+			for(int ix = 0; ix < COUNTERS; ix++) total[ix] += counters[adr][ix];
+			latency.add(latencies[adr]);
+		}
+		return(new Snapshot(0, total, latency));
+	}
+
+	private long[] station(int adr)
+	{
+		if(counters[adr] == null)
+		{
+			counters[adr] = new long[COUNTERS];
+			latencies[adr] = new LatencyHistogram();
+		}
+		return(counters[adr]);
+	}
+
+	/*----------------------------------------------------------
+	 *  MBean
+	 *-----------------------------------------------------------*/
+	public String getRole() { return(role); }
+
+	public synchronized int[] getStations()
+	{
+		int n = 0;
+		for(int adr = 0; adr < MAX_ADR; adr++) if(counters[adr] != null) n++;
+		int[] adrs = new int[n];
+		n = 0;
+		for(int adr = 0; adr < MAX_ADR; adr++) if(counters[adr] != null) adrs[n++] = adr;
+		return(adrs);
+	}
+
+	public long getIFramesSent() { return(total().get(I_SENT)); }
+	public long getIFramesReceived() { return(total().get(I_RECEIVED)); }
+	public long getIFramesRetransmitted() { return(total().get(I_RETRANSMITTED)); }
+	public long getRRFramesSent() { return(total().get(RR_SENT)); }
+	public long getRRFramesReceived() { return(total().get(RR_RECEIVED)); }
+	public long getFramesDiscarded() { return(total().get(DISCARDED)); }
+	public long getWindowStalls() { return(total().get(WINDOW_STALLS)); }
+	public long getSduBytes() { return(total().get(SDU_BYTES)); }
+	public long getDataBytes() { return(total().get(DATA_BYTES)); }
+	public long getDuplicateAcks() { return(total().get(DUPLICATE_ACKS)); }
+
+	public double getLatencyP50Ms() { return(total().latency.getPercentile(0.50)/1e6); }
+	public double getLatencyP99Ms() { return(total().latency.getPercentile(0.99)/1e6); }
+	public double getLatencyMaxMs() { return(total().latency.getMax()/1e6); }
+
+	public synchronized String[] getStationSummaries()
+	{
+		int[] adrs = getStations();
+		String[] lines = new String[adrs.length];
+		for(int ix = 0; ix < adrs.length; ix++) lines[ix] = snapshot(adrs[ix]).toString();
+		return(lines);
+	}
+}
@@ -0,0 +1,27 @@
+// Management interface of LinkStatistics (JMX, e.g. jconsole)
+// Totals over all the stations of the data link entity.
+public interface LinkStatisticsMBean
+{
+	String getRole();
+	int[] getStations();
+
+	long getIFramesSent();
+	long getIFramesReceived();
+	long getIFramesRetransmitted();
+	long getRRFramesSent();
+	long getRRFramesReceived();
+	long getFramesDiscarded();
+	long getWindowStalls();
+	long getDuplicateAcks();
+	// user data and what it took in the I frames (less with compression)
+	long getSduBytes();
+	long getDataBytes();
+
+	// Latency histogram, all stations (ms) - see LinkStatistics
+	double getLatencyP50Ms();
+	double getLatencyP99Ms();
+	double getLatencyMaxMs();
+
+	// One line per station
+	String[] getStationSummaries();
+}
@@ -1,21 +1,41 @@
 import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
-public class PhysicalLayer
+// Frames are read from the socket by a reader thread and placed in a queue,
+// so a data link entity waiting for a frame is parked (uses no CPU) and
+// wakes up as soon as a frame arrives.
+public class PhysicalLayer implements Runnable
 {
-	static ClientSocketManager medium = new ClientSocketManager();
+	private ClientSocketManager medium = new ClientSocketManager(); // one connection per data link entity
+	private LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>(); // frames read by the reader thread
 	
 	// Constructor - connect to local ip address using server port
 	public PhysicalLayer()
 	{
 		try {
 			medium.connect("0", PhysicalLayerServer.PL_PORT); // connects to local IP
+			Thread reader = new Thread(this, "PhysicalLayer-reader");
+			reader.setDaemon(true);
+			reader.start();
 		} catch (IOException e) {
 			System.out.println("Physical layer: Could not connect to Physical Layer Server");
 			e.printStackTrace();
 		} 		
 	}
 	
+	// Reader thread - reads frames until the connection is closed
+	public void run()
+	{
+		try {
+			String frame;
+			while((frame = medium.read()) != null) received.put(frame);
+		} catch (IOException e) { // connection closed
+		} catch (InterruptedException e) {
+		}
+	}
+	
 	public void close() throws IOException
 	{
 		medium.close();
@@ -38,13 +58,8 @@ public class PhysicalLayer
 	{
 		String frame = null;
 		
-		try {
-			if(medium.poll()) frame = medium.read();
-			if(frame != null) System.out.println("Physical layer: received frame >"+BitString.displayFrame(frame)+"<");
-		} catch (IOException e) {
-			System.out.println("Physical layer: IO Exception on receiving frame");
-			e.printStackTrace();
-		}
+		frame = received.poll();
+		if(frame != null) System.out.println("Physical layer: received frame >"+BitString.displayFrame(frame)+"<");
 		return(frame);
 	}
 	
@@ -52,11 +67,24 @@ public class PhysicalLayer
 	{
 		String frame = null;
 		try {
-			frame = medium.read();
+			frame = received.take();
 			System.out.println("Physical layer: received frame >"+BitString.displayFrame(frame)+"<");
-		} catch (IOException e) {
-			System.out.println("Physical layer: IO Exception on receiving frame");
-			e.printStackTrace();
+		} catch (InterruptedException e) {
+			System.out.println("Physical layer: interrupted while receiving frame");
+		}
+		return(frame);
+	}
+	
+	// Waits at most timeoutMs for a frame
+	// returns a null if no frame arrived in time
+	public String receive(long timeoutMs)
+	{
+		String frame = null;
+		try {
+			frame = received.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			if(frame != null) System.out.println("Physical layer: received frame >"+BitString.displayFrame(frame)+"<");
+		} catch (InterruptedException e) {
+			System.out.println("Physical layer: interrupted while receiving frame");
 		}
 		return(frame);
 	}
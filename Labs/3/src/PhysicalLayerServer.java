@@ -6,19 +6,65 @@ import java.io.IOException;
  *   1) only one node may communicate at a time (half-duplex)
  *   2) a "frame" received from one node is re-transmitted to all other nodes
  *   3) The port 4444 shall be used as the server port.
+ * Frames can be passed through a ChannelImpairment stage to simulate delay,
+ * limited bandwidth, losses, bit errors and duplicates (see ChannelImpairment
+ * for the command line options), e.g.
+ *   java PhysicalLayerServer -delay 20 -rate 9600 -loss 0.01 -ber 0.0001 -seed 42
+ * Each node has a bounded output queue so a slow node does not hold up the
+ * others:
+ *   -queue <frames>                            size of each output queue
+ *   -overflow drop|disconnect|backpressure     what to do when a queue is full
+ * With backpressure, a frame for a full queue is held and its sender is not
+ * read until it is queued; the other nodes go on (see ServerSocketManager).
+ * Every received frame can be recorded to a capture file for FrameReplay:
+ *   -capture <file>
+ * Other options:
+ *   -clients <n>   maximum number of nodes (default ServerSocketManager.MAXCLIENTS)
+ *   -quiet         do not display every frame (for load tests)
+ *   -tick <ms>     time the loop waits for new connections (default 1000 ms,
+ *                  a frame received during that time waits until it ends)
  */
 public class PhysicalLayerServer 
 {
 	public static final int PL_PORT = 4444;
+	public static final int DEFAULT_TICK_MS = 1000; // accept timeout
+	public static final int IMPAIRED_TICK_MS = 1; // accept timeout when frames are delayed by the channel (or held)
+	public static final long STATS_INTERVAL_MS = 10000; // how often the output queue metrics are displayed
     public static void main(String[] args) throws IOException 
     {        
         //get port number from the command line
     	System.out.println("Physical Layer Server starting on port "+PL_PORT);
         
         // Create the server socket manager
-        ServerSocketManager ssm= new ServerSocketManager(PL_PORT);
+        int maxClients = ServerSocketManager.MAXCLIENTS;
+        boolean quiet = false;
+        int tick = -1; // keep the default accept timeout
+        for(int ix = 0; ix < args.length; ix++)
+        {
+        	if(args[ix].equals("-clients") && ix+1 < args.length) maxClients = Integer.parseInt(args[ix+1]);
+        	else if(args[ix].equals("-tick") && ix+1 < args.length) tick = Integer.parseInt(args[ix+1]);
+        	else if(args[ix].equals("-quiet")) quiet = true;
+        }
+        ServerSocketManager ssm= new ServerSocketManager(PL_PORT, maxClients);
+        int acceptTimeout = DEFAULT_TICK_MS;
+        if(tick > 0) acceptTimeout = tick;
+        setOutputQueue(ssm, args);
+        boolean backpressure = (ssm.getOverflowPolicy() == ServerSocketManager.OverflowPolicy.BACKPRESSURE);
+        boolean holding = false; // frames held for full queues - loop often to queue them
+        long nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+        FrameCapture capture = openCapture(args);
+        // Setup the channel impairments
+        ChannelImpairment channel = ChannelImpairment.fromArgs(args);
+        if(channel.isActive())
+        {
+        	System.out.println("Physical Layer Server: "+channel);
+        	if(tick <= 0) acceptTimeout = IMPAIRED_TICK_MS; // loop often enough to deliver frames on time
+        }
+        ssm.setAcceptTimeout(acceptTimeout);
         //
         String frame; // for receiving and transmitting frame 
+        int [] destIds = new int[maxClients]; // destinations of a frame
+        int destCount;
         // Main Loop       
         boolean bListening = true;
         while(bListening)
@@ -28,25 +74,100 @@ public class PhysicalLayerServer
         	if(newClientId != -1) 
         		System.out.println("Physical Layer Server: connection from Physical Layer Client  "+newClientId);
         	
+        	// Frames held for full queues go first (the senders are not read meanwhile)
+        	if(backpressure) ssm.flushHeld();
+        	
         	// Frame received received
         	for(int rcv_id = ssm.pollClients(); rcv_id != -1; rcv_id = ssm.pollClients())
         	{
         		frame = ssm.readClient(rcv_id);
         		if(frame != null) // received a frame
         		{   // Transmit to all nodes (clients)
-            		System.out.println("Physical Layer Server: received frame from client  "+rcv_id+": >"+frame+"<, sending to other clients.");
-            		for(int tr_id = 0 ; tr_id < ServerSocketManager.MAXCLIENTS; tr_id++)
+            		if(!quiet) System.out.println("Physical Layer Server: received frame from client  "+rcv_id+": >"+frame+"<, sending to other clients.");
+            		if(capture != null) capture.record(rcv_id, frame);
+            		destCount = 0;
+            		for(int tr_id = 0 ; tr_id < maxClients; tr_id++)
                     {
                 	   if(ssm.isClosed(tr_id) == false && tr_id != rcv_id)
                 	   {
-                	       ssm.writeClient(tr_id, frame);
+                		   if(channel.isActive()) destIds[destCount++] = tr_id;
+                		   else ssm.writeClient(tr_id, frame, rcv_id);
                 	   }
                 	}       		
+            		if(destCount > 0) channel.transmit(frame, rcv_id, destIds, destCount, System.nanoTime());
         		}
         	}        	        	
+        	// Deliver the frames that have crossed the channel
+        	for(ChannelImpairment.Delivery d = channel.nextDue(System.nanoTime()); d != null; d = channel.nextDue(System.nanoTime()))
+        	{
+        		if(ssm.isClosed(d.destId) == false) ssm.writeClient(d.destId, d.frame, d.srcId); // held if the queue is full
+        	}
+        	if(backpressure && ssm.hasHeldFrames() != holding)
+        	{
+        		holding = !holding;
+        		ssm.setAcceptTimeout(holding ? IMPAIRED_TICK_MS : acceptTimeout);
+        	}
         	// Check for closed connections
         	ssm.closeConnections();        	
+        	// Output queue metrics
+        	if(System.currentTimeMillis() >= nextStats)
+        	{
+        		displayQueueStats(ssm);
+        		nextStats = System.currentTimeMillis() + STATS_INTERVAL_MS;
+        	}
         }        
     }// end main 
+    
+    // Opens the capture file given with -capture, null if none.
+    // The capture is closed when the server is stopped (e.g. Ctrl-C).
+    private static FrameCapture openCapture(String[] args) throws IOException
+    {
+    	for(int ix = 0; ix+1 < args.length; ix++)
+    	{
+    		if(args[ix].equals("-capture"))
+    		{
+    			final FrameCapture capture = new FrameCapture(args[ix+1]);
+    			System.out.println("Physical Layer Server: recording frames to "+args[ix+1]);
+    			Runtime.getRuntime().addShutdownHook(new Thread() {
+    				public void run()
+    				{
+    					try {
+    						capture.close();
+    						System.out.println("Physical Layer Server: recorded "+capture.getFrameCount()+" frames");
+    					} catch (IOException e) {
+    						e.printStackTrace();
+    					}
+    				}
+    			});
+    			return(capture);
+    		}
+    	}
+    	return(null);
+    }
+    
+    // Sets up the output queues from the command line arguments
+    private static void setOutputQueue(ServerSocketManager ssm, String[] args)
+    {
+    	int capacity = ServerSocketManager.DEFAULT_QUEUE_CAPACITY;
+    	ServerSocketManager.OverflowPolicy policy = ServerSocketManager.OverflowPolicy.DROP;
+    	for(int ix = 0; ix+1 < args.length; ix++)
+    	{
+    		if(args[ix].equals("-queue")) capacity = Integer.parseInt(args[ix+1]);
+    		else if(args[ix].equals("-overflow")) policy = ServerSocketManager.OverflowPolicy.valueOf(args[ix+1].toUpperCase());
+    	}
+    	ssm.setOutputQueue(capacity, policy);
+    	System.out.println("Physical Layer Server: output queues of "+capacity+" frames, overflow policy "+policy);
+    }
+    
+    // Displays the output queue of each connected node
+    private static void displayQueueStats(ServerSocketManager ssm)
+    {
+    	for(int id = 0; id < ssm.getMaxClients(); id++)
+    	{
+    		if(ssm.isClosed(id) == false)
+    			System.out.println("Physical Layer Server: client "+id+" queue depth="+ssm.getQueueDepth(id)+
+    			                   " max="+ssm.getMaxQueueDepth(id)+" dropped="+ssm.getDroppedFrames(id));
+    	}
+    }
 
 }
@@ -9,6 +9,8 @@ import java.io.IOException;
 //    FSC checking
 //    Bit stuffing (frames are transmitted as strings)
 //  Flag = "01111110"
+// With setCompression(true), SNRM offers compressed SDUs (SduCompression) in
+// its information field, used with the stations accepting them in their UA.
 //  Frames implemented:
 //     Command Frames: SNRM, DISC  
 //     Response Frames: UA
@@ -17,24 +19,55 @@ import java.io.IOException;
 public class PrimaryHDLCDataLink 
 {
 	// Private instance variables
-	private final int MAX = 5; // Maximum number of supported connections
+	public static final int DEFAULT_MAX = 5; // Default maximum number of supported connections
+	private final int MAX; // Maximum number of supported connections
 	private PhysicalLayer physicalLayer; // for sending/receiving frames
 	// Data for multiple connections in the case of the primary station
 	// For the secondary station, used values at index 0
-	private int [] adrs = new int [MAX];
-	private int [] vs = new int [MAX];
-	private int [] vr = new int [MAX];
+	private int [] adrs;
+	private int [] vs;
+	private int [] vr;
+	private int [] options; // accepted by each station (HdlcDefs.OPT_...)
+	private int offered = 0; // options offered in SNRM
+	private LinkStatistics statistics; // counters and poll to data latency per station
 
 	// Constructor
 	public PrimaryHDLCDataLink()
 	{
+		this(DEFAULT_MAX);
+	}
+	
+	// Constructor for up to max secondary stations
+	public PrimaryHDLCDataLink(int max)
+	{
+		MAX = max;
+		adrs = new int [MAX];
+		vs = new int [MAX];
+		vr = new int [MAX];
+		options = new int [MAX];
 		physicalLayer = new PhysicalLayer();	
+		statistics = new LinkStatistics("primary");
+		statistics.register("primary");
 	}
 	
 	public void close() throws IOException
 	{
+		statistics.unregister();
 		physicalLayer.close();
 	}
+
+	// Offer compressed SDUs to the stations connected after the call
+	public void setCompression(boolean compression)
+	{
+		if(compression) offered |= HdlcDefs.OPT_DEFLATE;
+		else offered &= ~HdlcDefs.OPT_DEFLATE;
+	}
+
+	// Frames exchanged with each secondary station and poll to data latency
+	public LinkStatistics getStatistics()
+	{
+		return(statistics);
+	}
 	
 	/*----------------------------------------------------------
 	 *  Connection Service
@@ -53,15 +86,18 @@ public class PrimaryHDLCDataLink
 			cd = Result.ResultCode.ReachedLimit;
 		else
 		{
+			// options offered in the information field, if any
 			String frame = HdlcDefs.FLAG+BitString.intToBitString(adr,HdlcDefs.ADR_SIZE_BITS)+
 			               HdlcDefs.U_FRAME+
 			               HdlcDefs.SNRM_M1+HdlcDefs.P1+HdlcDefs.SNRM_M2+
+			               (offered != 0 ? BitString.intToBitString(offered, HdlcDefs.OPTIONS_SIZE_BITS) : "")+
 			               HdlcDefs.FLAG;
 			System.out.println("Data Link Layer: prepared SNRM frame >"+BitString.displayFrame(frame)+"<");
 			physicalLayer.transmit(frame);
 			adrs[secondaryId] = adr;
 			vs[secondaryId]=0;
 			vr[secondaryId]=0;
+			options[secondaryId]=0;
 		}
 		return(new Result(cd, adr, null));		
 	}
@@ -98,7 +134,14 @@ public class PrimaryHDLCDataLink
 			{
 				cd = Result.ResultCode.InvalidAddress;
 			}
-			else System.out.println("Data Link Layer: received UA frame >"+BitString.displayFrame(frame)+"<");
+			else
+			{
+				System.out.println("Data Link Layer: received UA frame >"+BitString.displayFrame(frame)+"<");
+				// options accepted in the information field
+				if(frame.length() >= HdlcDefs.DATA_START+HdlcDefs.OPTIONS_SIZE_BITS+HdlcDefs.FLAG_SIZE_BITS)
+					options[getSecondaryId(adr)] = offered &
+						BitString.bitStringToInt(frame.substring(HdlcDefs.DATA_START, HdlcDefs.DATA_START+HdlcDefs.OPTIONS_SIZE_BITS));
+			}
 
 		}
 		return(new Result(cd, adr, retStr));		
@@ -158,10 +201,12 @@ public class PrimaryHDLCDataLink
 		// Send the poll (an RR with the P bit set
 		frame = HdlcDefs.FLAG+BitString.intToBitString(adr,HdlcDefs.ADR_SIZE_BITS)+
                        HdlcDefs.S_FRAME+HdlcDefs.RR_SS+HdlcDefs.P1+
-                       BitString.intToBitString(vr[adr], HdlcDefs.SNUM_SIZE_BITS)+
+                       BitString.intToBitString(vr[id], HdlcDefs.SNUM_SIZE_BITS)+
                        HdlcDefs.FLAG;
 		System.out.println("Data Link Layer: sending RR frame (poll) >"+BitString.displayFrame(frame)+"<");
 		physicalLayer.transmit(frame);
+		statistics.count(adr, LinkStatistics.RR_SENT);
+		long pollTime = System.nanoTime();
 		
 		// Collect the data in the received frames - ack each frame (go back N)
 		boolean flag = true;
@@ -171,14 +216,20 @@ public class PrimaryHDLCDataLink
 			if(frame.charAt(HdlcDefs.TYPE_START) == '0') // Ignore other frames
 			{
 				ns = BitString.bitStringToInt(frame.substring(HdlcDefs.NS_START,HdlcDefs.NS_END));
+				statistics.count(adr, LinkStatistics.I_RECEIVED);
 				if(ns == vr[id])  // Is it the expected frame
 				{
 					data =  frame.substring(HdlcDefs.DATA_START, frame.length()-HdlcDefs.FLAG_SIZE_BITS);
 					sdu = sdu+BitString.bitStringToString(data);
 					vr[id] = (vr[id]+1)%HdlcDefs.SNUM_SIZE_COUNT;  // increment next expected seq num
-					if(frame.charAt(HdlcDefs.PF_IX) == '1') flag = false; // last frame of data - stop 
+					if(frame.charAt(HdlcDefs.PF_IX) == '1')
+					{
+						flag = false; // last frame of data - stop 
+						statistics.recordLatency(adr, System.nanoTime() - pollTime);
+					}
 					System.out.println("Data Link Layer: received I frame >"+BitString.displayFrame(frame)+"<");
 				}				
+				else statistics.count(adr, LinkStatistics.DISCARDED); // duplicate or out of sequence
 				// Send acknowledgement even if frame not expected
 				frame = HdlcDefs.FLAG+BitString.intToBitString(adr,HdlcDefs.ADR_SIZE_BITS)+
                         HdlcDefs.S_FRAME+HdlcDefs.RR_SS+HdlcDefs.P0+
@@ -186,9 +237,18 @@ public class PrimaryHDLCDataLink
                         HdlcDefs.FLAG;
 				System.out.println("Data Link Layer: prepared RR frame(ack) >"+BitString.displayFrame(frame)+"<");
 	            physicalLayer.transmit(frame);
+				statistics.count(adr, LinkStatistics.RR_SENT);
 			}
-		}		
-		return(new Result(cd, adr, sdu));		
+		}
+		statistics.count(adr, LinkStatistics.DATA_BYTES, sdu.length());
+		if((options[id] & HdlcDefs.OPT_DEFLATE) != 0)
+		{
+			String decoded = SduCompression.decode(sdu, HdlcDefs.MAX_INFLATED_BYTES);
+			if(decoded == null) return(new Result(Result.ResultCode.InvalidSdu, adr, sdu));
+			sdu = decoded;
+		}
+		statistics.count(adr, LinkStatistics.SDU_BYTES, sdu.length());
+		return(new Result(cd, adr, sdu));
 	}
 		
 	
@@ -218,4 +278,4 @@ public class PrimaryHDLCDataLink
     	return(id);   	
     }  
  
-}
\ No newline at end of file
+}
\ No newline at end of file
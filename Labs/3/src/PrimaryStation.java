@@ -7,6 +7,8 @@ public class PrimaryStation {
     	Result res;  // for referencing result from data link layer
    	    // Setup Data Link Layer
     	PrimaryHDLCDataLink dl = new PrimaryHDLCDataLink();
+    	// -deflate: offer compressed SDUs to the stations
+    	dl.setCompression(args.length > 0 && args[0].equals("-deflate"));
     	
     	// Connect to 2 stations
     	if(connectStation(1,dl) == false) return; // stop application on error.
@@ -7,7 +7,8 @@ public class Result
 		                     ReachedLimit,   // For primary - cannot support additional secondary stations
 		                     UnexpectedFrameReceived, // Unexpected Frame Type (I, S, U) received
 		                     UnexpectedUFrameReceived, // Unexpected U-Frame (SNRM, UA, DISC) received
-		                     InvalidAddress  // For primary - address of frame invalid (no connection exists)
+		                     InvalidAddress, // For primary - address of frame invalid (no connection exists)
+		                     InvalidSdu      // For primary - compressed SDU that cannot be decoded
 		                    };
     private ResultCode result;
     private int address;
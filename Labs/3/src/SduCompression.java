@@ -0,0 +1,74 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Compression of the SDUs, used when both stations offered HdlcDefs.OPT_DEFLATE
+ * in the information field of SNRM and UA.
+ * The SDU is compressed before it is split into I frames, so a compressible
+ * message takes fewer frames.  The first byte of the SDU tells how the rest
+ * is sent:
+ *   SDU_PLAIN     as it is (shorter than DEFLATE_THRESHOLD_BYTES, or not smaller compressed)
+ *   SDU_DEFLATED  zlib compressed
+ * The characters of an SDU are bytes (8 bits in the data field, see
+ * BitString), the compressed bytes are carried the same way.
+ * Each thread has its own Deflater and Inflater, reset for every SDU
+ * (the stations of StationLoadTest run on many threads).
+ */
+public class SduCompression
+{
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() { return(new Deflater(Deflater.BEST_COMPRESSION)); }
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() { return(new Inflater()); }
+	};
+
+	// SDU with its first byte, ready to be split into frames
+	public static String encode(String sdu)
+	{
+		if(sdu.length() >= HdlcDefs.DEFLATE_THRESHOLD_BYTES)
+		{
+			byte[] data = sdu.getBytes(StandardCharsets.ISO_8859_1);
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] out = new byte[data.length];
+			int len = 0;
+			while(!deflater.finished() && len < out.length) len += deflater.deflate(out, len, out.length - len);
+			if(deflater.finished() && len < data.length - 1)
+				return((char) HdlcDefs.SDU_DEFLATED + new String(out, 0, len, StandardCharsets.ISO_8859_1));
+		}
+		return((char) HdlcDefs.SDU_PLAIN + sdu);
+	}
+
+	// SDU received, without its first byte - null if it cannot be decoded,
+	// or if it inflates to more than max bytes (a corrupted or hostile SDU)
+	public static String decode(String sdu, int max)
+	{
+		if(sdu.length() == 0) return(null);
+		if(sdu.charAt(0) == HdlcDefs.SDU_PLAIN) return(sdu.substring(1));
+		if(sdu.charAt(0) != HdlcDefs.SDU_DEFLATED) return(null);
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(sdu.substring(1).getBytes(StandardCharsets.ISO_8859_1));
+		byte[] out = new byte[Math.min(max, sdu.length()*4)];
+		int len = 0;
+		try {
+			while(!inflater.finished())
+			{
+				if(len == max) return(null); // too large
+				if(len == out.length) out = Arrays.copyOf(out, (int) Math.min(max, out.length*2L));
+				int n = inflater.inflate(out, len, out.length - len);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return(null); // truncated
+				len += n;
+			}
+		} catch (DataFormatException e) {
+			return(null);
+		}
+		return(new String(out, 0, len, StandardCharsets.ISO_8859_1));
+	}
+}
@@ -10,6 +10,8 @@ import java.util.List;
 // Not Supported:
 //    FSC checking
 //    Bit stuffing (frames are transmitted as strings)
+// Compression of the SDUs (SduCompression) is used if setCompression(true)
+// was called and the primary offered it in the SNRM information field.
 //  Frames implemented:
 //     Command Frames:
 //        NRM:
@@ -22,6 +24,10 @@ import java.util.List;
 
 public class SecondaryHDLCDataLink
 {
+	// Time to wait for an acknowledgement before the unacknowledged
+	// frames are transmitted again (go back N).  Must cover the round trip
+	// through the Physical Layer Server which may hold a frame for up to 1 s.
+	public static final long ACK_TIMEOUT_MS = 3000;
 	// Private instance variables
 	private PhysicalLayer physicalLayer; // for sending/receiving frames
 	private int stationAdr; // Station address - not used for the primary station
@@ -32,6 +38,10 @@ public class SecondaryHDLCDataLink
 	private int rhsWindow; // right hand side of window.
 	private int windowSize; // transmit window size. reception window size is 1.
 	private ArrayList<String> frameBuffer;
+	private ArrayList<Long> sentTimes; // first transmission of each buffered frame (ns)
+	private LinkStatistics statistics; // counters and ack latency
+	private boolean compression = false; // supported by this station
+	private int options = 0; // offered by the primary and supported (HdlcDefs.OPT_...)
 
 	// Constructor
 	public SecondaryHDLCDataLink(int adr)
@@ -42,14 +52,30 @@ public class SecondaryHDLCDataLink
 	    vr = 0;
 	    windowSize = 4;  //
 	    frameBuffer = new ArrayList<String>();
+	    sentTimes = new ArrayList<Long>();
 	    rhsWindow = vs+windowSize; // seq # < rhsWindow
+	    statistics = new LinkStatistics("secondary");
+	    statistics.register("secondary-"+adr);
 	}
 
 	public void close() throws IOException
 	{
+		statistics.unregister();
 		physicalLayer.close();
 	}
 
+	// Accept compressed SDUs if the primary offers them (before the connection)
+	public void setCompression(boolean compression)
+	{
+		this.compression = compression;
+	}
+
+	// Frames exchanged with the primary and I frame to ack latency
+	public LinkStatistics getStatistics()
+	{
+		return(statistics);
+	}
+
 	/*----------------------------------------------------------
 	 *  Connection Service
 	 *-----------------------------------------------------------*/
@@ -79,7 +105,15 @@ public class SecondaryHDLCDataLink
 				cd = Result.ResultCode.UnexpectedUFrameReceived;
 				retStr = uframe;
 			}
-			else System.out.println("Data Link Layer: received SNRM frame >"+BitString.displayFrame(frame)+"<");
+			else
+			{
+				System.out.println("Data Link Layer: received SNRM frame >"+BitString.displayFrame(frame)+"<");
+				// options offered in the information field
+				options = 0;
+				if(compression && frame.length() >= HdlcDefs.DATA_START+HdlcDefs.OPTIONS_SIZE_BITS+HdlcDefs.FLAG_SIZE_BITS)
+					options = BitString.bitStringToInt(frame.substring(HdlcDefs.DATA_START, HdlcDefs.DATA_START+HdlcDefs.OPTIONS_SIZE_BITS))
+					          & HdlcDefs.OPT_DEFLATE;
+			}
 		}
 		return(new Result(cd, adr, retStr));
 	}
@@ -88,9 +122,11 @@ public class SecondaryHDLCDataLink
 	{
 		Result.ResultCode cd = Result.ResultCode.SrvSucessful;
 		// Check if room for additional connection
+		// accepted options in the information field, if any
 		String frame = HdlcDefs.FLAG+BitString.intToBitString(stationAdr,HdlcDefs.ADR_SIZE_BITS)+
 		               HdlcDefs.U_FRAME+
 		               HdlcDefs.UA_M1+HdlcDefs.P1+HdlcDefs.UA_M2+
+		               (options != 0 ? BitString.intToBitString(options, HdlcDefs.OPTIONS_SIZE_BITS) : "")+
 		               HdlcDefs.FLAG;
 		System.out.println("Data Link Layer: prepared UA frame >"+BitString.displayFrame(frame)+"<");
 		physicalLayer.transmit(frame);
@@ -142,14 +178,23 @@ public class SecondaryHDLCDataLink
 		Result.ResultCode cd = Result.ResultCode.SrvSucessful;
 
 		// Wait for poll - need an RR with P bit - 1
+		boolean poll = false;
 		do {
-			frame = getRRFrame(true);
-		} while(frame.charAt(HdlcDefs.PF_IX) == '0'); //if it's not a poll
+			frame = getRRFrame(true); // can be an I or U frame as well
+			if(frame.substring(HdlcDefs.TYPE_START, HdlcDefs.TYPE_END).equals(HdlcDefs.S_FRAME))
+			{
+				statistics.count(stationAdr, LinkStatistics.RR_RECEIVED);
+				poll = (frame.charAt(HdlcDefs.PF_IX) == '1');
+			}
+		} while(poll == false); //if it's not a poll
 
 		// Send the SDU
 		// After each transmission, check for an ACK (RR)
 		// Use a sliding window
 		// Reception will be go back-N
+		statistics.count(stationAdr, LinkStatistics.SDU_BYTES, sdu.length());
+		if((options & HdlcDefs.OPT_DEFLATE) != 0) sdu = SduCompression.encode(sdu); // before it is split
+		statistics.count(stationAdr, LinkStatistics.DATA_BYTES, sdu.length());
 		String [] dataArr = BitString.splitString(sdu, HdlcDefs.MAX_DATA_SIZE_BYTES);
 		// Convert the strings into bitstrings
 		for(int ix=0 ; ix < dataArr.length; ix++)
@@ -160,6 +205,8 @@ public class SecondaryHDLCDataLink
 		int nr;
 		String bitFrame;
 		int i = 0;
+		long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS; // retransmission deadline
+		boolean stalled = false; // window closed with frames left to send
 
 		// Loop to transmit frames
 		// Continue to loop as long as dataArr has frames that have not been processed or frames frameBuffer have not been transmitted
@@ -169,18 +216,34 @@ public class SecondaryHDLCDataLink
 			if(vs != rhsWindow && i < dataArr.length)
 			{
 				// Add frame to the buffer and increment the sequence number
+				// Start the retransmission timer if no other frame waits for an ack
+				if(frameBuffer.size() == 0) deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
 
 				frameBuffer.add(bitFrame = dataArr[i]);
-				vs = ++vs % HdlcDefs.SNUM_SIZE_COUNT;
+				sentTimes.add(System.nanoTime());
 
-				// Transmit the frame
-				makeIFrame(bitFrame, i % HdlcDefs.SNUM_SIZE_COUNT, i == dataArr.length - 1);
+				// Transmit the frame - N(S) is V(S), it goes on from the previous SDU
+				makeIFrame(bitFrame, vs, i == dataArr.length - 1);
+				vs = ++vs % HdlcDefs.SNUM_SIZE_COUNT;
+				statistics.count(stationAdr, LinkStatistics.I_SENT);
 				i++;
 				displayDataXchngState("Data Link Layer: prepared and buffered I frame >" + BitString.displayFrame(bitFrame) + "<");
 			}
 
 			// Check for RR
-			frame = getRRFrame(false); // just poll
+			// Just poll if more frames can be sent, otherwise (window closed or
+			// all frames sent) wait until an RR arrives or the deadline expires.
+			if(vs != rhsWindow && i < dataArr.length)
+				frame = getRRFrame(false); // just poll
+			else
+			{
+				if(i < dataArr.length && !stalled)
+				{
+					statistics.count(stationAdr, LinkStatistics.WINDOW_STALLS);
+					stalled = true;
+				}
+				frame = getRRFrame(Math.max(1, deadline - System.currentTimeMillis()));
+			}
 
 			if ((frame != null) && (frame.charAt(HdlcDefs.PF_IX) == '0')) // have an ACK frame
 			{
@@ -194,11 +257,36 @@ public class SecondaryHDLCDataLink
 				rhsWindow = (rhsWindow + ackFrames) % HdlcDefs.SNUM_SIZE_COUNT;
 
 				// Remove transmitted frames from buffer
+				long now = System.nanoTime();
 				for (int j = 0; j < ackFrames; j++)
+				{
 					frameBuffer.remove(0);
+					statistics.recordLatency(stationAdr, now - sentTimes.remove(0));
+				}
+
+				statistics.count(stationAdr, LinkStatistics.RR_RECEIVED);
+				if(ackFrames == 0) statistics.count(stationAdr, LinkStatistics.DUPLICATE_ACKS);
+
+				// Restart the retransmission timer for the remaining frames
+				if(ackFrames > 0)
+				{
+					deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
+					stalled = false;
+				}
 
 				displayDataXchngState("received an RR frame (ack) >" + BitString.displayFrame(frame) + "<");
 			}
+			else if(frame == null && frameBuffer.size() > 0 && System.currentTimeMillis() >= deadline)
+			{
+				// No ack in time - go back N: transmit all the buffered frames again
+				int first = i - frameBuffer.size(); // index in dataArr of the first buffered frame
+				int ns = (vs - frameBuffer.size() + HdlcDefs.SNUM_SIZE_COUNT) % HdlcDefs.SNUM_SIZE_COUNT; // of that frame
+				for(int j = 0; j < frameBuffer.size(); j++)
+					makeIFrame(frameBuffer.get(j), (ns+j) % HdlcDefs.SNUM_SIZE_COUNT, first+j == dataArr.length - 1);
+				deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
+				statistics.count(stationAdr, LinkStatistics.I_RETRANSMITTED, frameBuffer.size());
+				displayDataXchngState("no ack received - retransmitted "+frameBuffer.size()+" I frames");
+			}
 		}
 
 		return(new Result(cd, 0, null));
@@ -265,23 +353,45 @@ public class SecondaryHDLCDataLink
 		String frame;
 
 		do {
-			frame = getFrame(wait);
+			frame = filterRRFrame(getFrame(wait));
+		} while(wait && frame == null);
 
-			// bonne trame?
-			if (frame != null) {
-				String type = frame.substring(HdlcDefs.TYPE_START, HdlcDefs.TYPE_END);
+		return frame;
+	}
 
-				if (type.equals(HdlcDefs.S_FRAME)) {
-					String sframe = frame.substring(HdlcDefs.S_START, HdlcDefs.S_END);
+	// Helper method to get an RR-frame, waiting
+	// at most timeoutMs for it to arrive.
+	// Returns null if no frame arrives in time.
+	private String getRRFrame(long timeoutMs)
+	{
+		String frame = null;
+		long end = System.currentTimeMillis() + timeoutMs;
+
+		for(long left = timeoutMs; frame == null && left > 0; left = end - System.currentTimeMillis()) {
+			frame = filterRRFrame(getFrame(left));
+		}
+
+		return frame;
+	}
+
+	// Returns null if the frame is a supervisory
+	// frame other than RR
+	private String filterRRFrame(String frame)
+	{
+		// bonne trame?
+		if (frame != null) {
+			String type = frame.substring(HdlcDefs.TYPE_START, HdlcDefs.TYPE_END);
 
-					// si pas "RR", on
-					if (!sframe.equals(HdlcDefs.RR_SS)) {
-						frame = null;
-					}
+			if (type.equals(HdlcDefs.S_FRAME)) {
+				String sframe = frame.substring(HdlcDefs.S_START, HdlcDefs.S_END);
+
+				// si pas "RR", on
+				if (!sframe.equals(HdlcDefs.RR_SS)) {
+					frame = null;
 				}
-				// sinon, frame = null
 			}
-		} while(wait && frame == null);
+			// sinon, frame = null
+		}
 
 		return frame;
 	}
@@ -323,4 +433,23 @@ public class SecondaryHDLCDataLink
 		return(frame);
 	}
 
+	// Waits at most timeoutMs for a frame with this
+	// station's address.
+	// Returns null if no frame is received in time.
+	private String getFrame(long timeoutMs)
+	{
+		String frame = null;
+		long end = System.currentTimeMillis() + timeoutMs;
+		for(long left = timeoutMs; frame == null && left > 0; left = end - System.currentTimeMillis())
+		{
+			frame = physicalLayer.receive(left);  // parks until a frame arrives or time is up
+			if(frame != null)
+			{
+				int adr = BitString.bitStringToInt(frame.substring(HdlcDefs.ADR_START, HdlcDefs.ADR_END));
+				if(adr != stationAdr) frame = null;  // ignore strings for other destinations
+			}
+		}
+		return(frame);
+	}
+
 }
@@ -13,9 +13,9 @@ public class SecondaryStation
                          "Many HDLC I frames shall be used to send this message";
 		Result res;  // results from service 
 		// Get address from command line
-		if(args.length != 1)
+		if(args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("-deflate")))
 		{
-			System.out.println("Usage: java SecondaryStation <Station Address");
+			System.out.println("Usage: java SecondaryStation <Station Address> [-deflate]");
 			return;
 		}
 		
@@ -23,6 +23,7 @@ public class SecondaryStation
 		
 		// Setup connection with Primary Station
 		SecondaryHDLCDataLink dl = new SecondaryHDLCDataLink(address);
+		dl.setCompression(args.length == 2); // accept compressed SDUs if offered
 		
 		// Connect to primary
     	System.out.println("--------------------Connection to Primary-------------------");
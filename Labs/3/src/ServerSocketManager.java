@@ -1,22 +1,55 @@
 
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class ServerSocketManager 
 {
-	public static final int MAXCLIENTS = 10;  // Maximum number of clients - static variable and public
+	public static final int MAXCLIENTS = 10;  // Default maximum number of clients - static variable and public
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000; // frames waiting to be written to a client
+	// What writeClient() does when the output queue of a client is full
+	public enum OverflowPolicy { DROP,          // the frame is dropped for that client
+	                             DISCONNECT,    // the client is disconnected
+	                             BACKPRESSURE   // the frame is held until there is room (see flushHeld()),
+	                                            // and its sender is not read meanwhile
+	                           };
+	// Frame waiting for room in the output queue of a client (BACKPRESSURE)
+	private static class HeldFrame
+	{
+		final String frame;
+		final int destId;
+		int srcId; // -1 if not from a client (or the client is gone)
+
+		HeldFrame(String frame, int destId, int srcId)
+		{
+			this.frame = frame;
+			this.destId = destId;
+			this.srcId = srcId;
+		}
+	}
     private ServerSocket serverSocket = null;  // Socket for listening to incoming connections
-    private Socket[] clients = new Socket[MAXCLIENTS];  // Used to maintain up to 10 clients (i.e. Socket objects)
-    private PrintWriter[] s_out = new PrintWriter[MAXCLIENTS]; // For writing to sockets
-    private BufferedReader[] s_in = new BufferedReader[MAXCLIENTS]; // For reading from sockets
+    private int maxClients;  // Maximum number of clients (size of the arrays)
+    private Socket[] clients;  // Used to maintain up to maxClients clients (i.e. Socket objects)
+    private PrintWriter[] s_out; // For writing to sockets
+    private BufferedReader[] s_in; // For reading from sockets
+    private ClientOutputQueue[] s_queue; // Frames waiting to be written
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
     private int clientCount = 0;
+    private ArrayList<HeldFrame> held = new ArrayList<HeldFrame>(); // BACKPRESSURE: frames waiting for room, oldest first
+    private int[] s_heldFrom; // frames of each client held - the client is not read while > 0
+    private int[] s_heldTo; // frames held for each client - later frames go behind them
+    private boolean[] s_stuck; // for flushHeld()
     
     // Constructor
     // Setup the ServerSocket object
@@ -24,14 +57,43 @@ public class ServerSocketManager
     // See the API documentation in the Java API docummentation for ServerSocket
     public ServerSocketManager(int portNumber) throws IOException
     {
+    	this(portNumber, MAXCLIENTS);
+    }
+    
+    // Constructor for up to maxClients clients
+    public ServerSocketManager(int portNumber, int maxClients) throws IOException
+    {
+    	this.maxClients = maxClients;
+    	clients = new Socket[maxClients];
+    	s_out = new PrintWriter[maxClients];
+    	s_in = new BufferedReader[maxClients];
+    	s_queue = new ClientOutputQueue[maxClients];
+    	s_heldFrom = new int[maxClients];
+    	s_heldTo = new int[maxClients];
+    	s_stuck = new boolean[maxClients];
         // Create Socket for listening
-           serverSocket = new ServerSocket(portNumber);            
+           serverSocket = new ServerSocket(portNumber, maxClients); // backlog large enough for all clients connecting at once
         // set timeout on the socket so the program does not
         // hang up
         serverSocket.setSoTimeout(1000);
         // Note: all entries in clients array are null - no connection.
     }
     
+    // Changes the time listenOnSocket() blocks waiting for a connection.
+    // A shorter timeout lets the caller run its loop more often.
+    public void setAcceptTimeout(int timeoutMs) throws IOException
+    {
+    	serverSocket.setSoTimeout(timeoutMs);
+    }
+    
+    // Sets the size of the output queue of each client and what to do
+    // when it is full.  Applies to clients accepted after the call.
+    public void setOutputQueue(int capacity, OverflowPolicy policy)
+    {
+    	queueCapacity = capacity;
+    	overflowPolicy = policy;
+    }
+    
     // To listen on the socket.  
     // Calls accept() to check for connections, times out after 1 second (see Constructor).
     // If a call from a client is accepted (reference to Socket object returned by accept())
@@ -51,7 +113,7 @@ public class ServerSocketManager
     	// client identifier (index into arrays)
     	int clientid;
     	// Have we reached the limit
-    	if(clientCount == MAXCLIENTS)
+    	if(clientCount == maxClients)
     	{
     		System.out.println("Maximum clients reached");
     		return(-1);
@@ -74,7 +136,7 @@ public class ServerSocketManager
 			                   newClient.getInetAddress() + " accepted.");
 			newClient.setSoTimeout(0);  // no timeout - use polling with ready() method in buffered reader.
 			System.out.println("Accepted client");
-			out = new PrintWriter(newClient.getOutputStream(),true); // flag true for autoflush
+			out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(newClient.getOutputStream()))); // flushed by the output queue
 			in = new BufferedReader(new InputStreamReader(newClient.getInputStream()));
 			// Find client id
 			clientid = getFreeClientId();
@@ -82,6 +144,7 @@ public class ServerSocketManager
 			clients[clientid] = newClient;
 			s_out[clientid] = out;
 			s_in[clientid] = in;
+			s_queue[clientid] = new ClientOutputQueue(clientid, newClient, out, queueCapacity);
 			clientCount++;  // increment number of connected clients
 		}
 		else
@@ -111,16 +174,15 @@ public class ServerSocketManager
         	}          
     	}
     	catch (SocketException e) { // assume connection is closed
-   		    clients[clientid] = null;
-    		s_out[clientid] = null;
-    		s_in[clientid] = null;
-    		clientCount--;
+    		wipeClient(clientid);
     	}
     	return(stream);    	
     }
     
     // Poll all connected sockets 
     // Returns a client id of a connection with received data, and -1 if no data exists for any data
+    // Clients with frames held (BACKPRESSURE) are not returned, their frames stay in the
+    // socket and TCP flow control slows them down.
     // This method is provided - do consult the documentation on the ready() method (BufferedInput) to 
     // understand the method.
     public int pollClients() throws IOException
@@ -128,9 +190,9 @@ public class ServerSocketManager
     	int clientid=-1;
     	
     	// Check only clients not null
-    	for(int ix = 0 ; ix < MAXCLIENTS && clientid == -1; ix++)
+    	for(int ix = 0 ; ix < maxClients && clientid == -1; ix++)
     	{
-    		if(clients[ix] != null) // connection exists
+    		if(clients[ix] != null && s_heldFrom[ix] == 0) // connection exists and is read
     		{
     			if(s_in[ix].ready() == true) clientid = ix;
     		}
@@ -139,15 +201,84 @@ public class ServerSocketManager
     }
         
     // Write string to socket
-    // Write to the Socket using the ReadWriter object
-    public void writeClient(int clientid, String stream) throws IOException
+    // The string is added to the output queue of the client and written by
+    // the queue's thread, so a slow client does not block the caller.
+    // Returns false if the string could not be queued (see OverflowPolicy).
+    public boolean writeClient(int clientid, String stream) throws IOException
+    {
+    	return(writeClient(clientid, stream, -1));
+    }
+    
+    // Same, for a frame received from client srcId.  With BACKPRESSURE, a frame
+    // that does not fit is held (and queued by flushHeld()), srcId is not read
+    // until it is queued.  Nothing blocks.
+    public boolean writeClient(int clientid, String stream, int srcId) throws IOException
     {    	
+    	boolean queued = false;
     	if(clients[clientid] != null)  // check that client connected
     	{
-    		s_out[clientid].println(stream);  /// need line feed so that readLine() sees the line - the line feed is not delivered.
+    		if(overflowPolicy == OverflowPolicy.BACKPRESSURE)
+    		{
+    			if(s_heldTo[clientid] == 0) queued = s_queue[clientid].offer(stream); // keep the order
+    			if(queued == false)
+    			{
+    				held.add(new HeldFrame(stream, clientid, srcId));
+    				s_heldTo[clientid]++;
+    				if(srcId != -1) s_heldFrom[srcId]++;
+    				queued = true; // later
+    			}
+    			return(queued);
+    		}
+    		queued = s_queue[clientid].offer(stream);
+    		if(queued == false && overflowPolicy == OverflowPolicy.DISCONNECT)
+    		{
+    			System.out.println("Output queue of client "+clientid+" full - disconnecting");
+    			clients[clientid].close();
+    			wipeClient(clientid);
+    		}
+    	}
+    	return(queued);
+    }
+    
+    // Queues the held frames the output queues have room for (BACKPRESSURE),
+    // in order for each client.  Their senders are read again once none
+    // of their frames is held.  Call it on every pass of the loop.
+    public void flushHeld()
+    {
+    	if(held.isEmpty()) return;
+    	Arrays.fill(s_stuck, false);
+    	int kept = 0;
+    	for(int ix = 0; ix < held.size(); ix++)
+    	{
+    		HeldFrame h = held.get(ix);
+    		if(s_stuck[h.destId] == false && s_queue[h.destId].offer(h.frame))
+    		{
+    			s_heldTo[h.destId]--;
+    			if(h.srcId != -1) s_heldFrom[h.srcId]--;
+    		}
+    		else
+    		{
+    			s_stuck[h.destId] = true; // the frames after it wait as well
+    			held.set(kept++, h);
+    		}
     	}
+    	while(held.size() > kept) held.remove(held.size()-1);
+    }
+    
+    // Returns true if frames wait for room (BACKPRESSURE)
+    public boolean hasHeldFrames()
+    {
+    	return(held.isEmpty() == false);
     }
     
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    public int getMaxClients() { return maxClients; }
+    
+    // Output queue metrics - 0 if the client is not connected
+    public int getQueueDepth(int clientid) { return (s_queue[clientid] == null) ? 0 : s_queue[clientid].getDepth(); }
+    public int getMaxQueueDepth(int clientid) { return (s_queue[clientid] == null) ? 0 : s_queue[clientid].getMaxDepth(); }
+    public long getDroppedFrames(int clientid) { return (s_queue[clientid] == null) ? 0 : s_queue[clientid].getDropped(); }
+    
     // Returns true if connection closed
     public boolean isClosed(int clientid)
     {
@@ -161,16 +292,37 @@ public class ServerSocketManager
     // Provided.
     public void closeConnections() throws IOException
     {
-    	for(int ix=0; ix < MAXCLIENTS; ix++)
+    	for(int ix=0; ix < maxClients; ix++)
+    	{
+    		if(clients[ix] != null && clients[ix].isClosed())  // closed by the output queue when a write fails
+    		{
+    			wipeClient(ix);
+    		}
+    	}
+    }
+    
+    // Frees up the entries of a client in the arrays
+    private void wipeClient(int clientid)
+    {
+    	// forget the frames held for it, and that it sent the others
+    	for(int ix = held.size()-1; ix >= 0; ix--)
     	{
-    		if(clients[ix] != null && clients[ix].isClosed())  // Does not work - ToDo - need to fix
+    		HeldFrame h = held.get(ix);
+    		if(h.destId == clientid)
     		{
-    			clients[ix] = null;
-        		s_out[ix] = null;
-        		s_in[ix] = null;
-   			    clientCount--;
+    			held.remove(ix);
+    			if(h.srcId != -1) s_heldFrom[h.srcId]--;
     		}
+    		else if(h.srcId == clientid) h.srcId = -1;
     	}
+    	s_heldFrom[clientid] = 0;
+    	s_heldTo[clientid] = 0;
+    	s_queue[clientid].close();
+    	clients[clientid] = null;
+    	s_out[clientid] = null;
+    	s_in[clientid] = null;
+    	s_queue[clientid] = null;
+    	clientCount--;
     }
     
     // Finds the index in the clients array that is null
@@ -178,7 +330,7 @@ public class ServerSocketManager
     private int getFreeClientId()
     {
     	int id = -1;
-    	for(int ix=0 ; ix < MAXCLIENTS && id == -1; ix++)
+    	for(int ix=0 ; ix < maxClients && id == -1; ix++)
     	{
     		if(clients[ix] == null) id = ix;
     	}
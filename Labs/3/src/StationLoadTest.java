@@ -0,0 +1,172 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* Load test of the Physical Layer Server and the primary data link entity.
+ * Runs one primary and many secondary data link entities in the same JVM,
+ * each secondary on its own (virtual when available) thread.  Each secondary
+ * behaves like SecondaryStation: accept the connection, send a message each
+ * time it is polled, then wait for the disconnect.
+ * The Physical Layer Server must be started with room for all the stations, e.g.
+ *   java PhysicalLayerServer -clients 300 -quiet -tick 1
+ *   java StationLoadTest 254 -rounds 3 -size 256
+ * Usage:
+ *   java StationLoadTest <stations> [-rounds <n>] [-size <bytes>] [-settle <ms>] [-deflate]
+ *     stations  number of secondary stations (1 to 255 - 8 bit addresses)
+ *     -rounds   number of messages each station sends (default 1)
+ *     -size     size of each message in bytes (default 256)
+ *     -settle   time given to the server to accept all connections (default 2000 ms)
+ *     -deflate  compressed SDUs (the message repeats one character - compresses well)
+ * Reports the aggregate I frame rate and the time taken by the primary to
+ * collect a message from a station (dlDataIndication).
+ */
+public class StationLoadTest
+{
+	public static final int MAX_STATIONS = 255;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 1)
+		{
+			System.out.println("Usage: java StationLoadTest <stations> [-rounds <n>] [-size <bytes>] [-settle <ms>] [-deflate]");
+			return;
+		}
+		final int stations = Math.min(Integer.parseInt(args[0]), MAX_STATIONS);
+		int rounds = 1;
+		int size = 256;
+		long settle = 2000;
+		boolean deflate = false;
+		for(int ix = 1; ix < args.length; ix++)
+		{
+			if(args[ix].equals("-deflate")) deflate = true;
+			else if(ix+1 == args.length) break;
+			else if(args[ix].equals("-rounds")) rounds = Integer.parseInt(args[++ix]);
+			else if(args[ix].equals("-size")) size = Integer.parseInt(args[++ix]);
+			else if(args[ix].equals("-settle")) settle = Long.parseLong(args[++ix]);
+		}
+		final int nRounds = rounds;
+		final boolean compression = deflate;
+		char[] fill = new char[size];
+		Arrays.fill(fill, 'x');
+		final String message = new String(fill);
+
+		// The data link entities display every frame - keep the console for the results
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() { public void write(int b) { } }));
+
+		// Start the secondary stations
+		final CountDownLatch connected = new CountDownLatch(stations);
+		final CountDownLatch done = new CountDownLatch(stations);
+		final int[] failures = new int[1];
+		final LatencyHistogram ackLatency = new LatencyHistogram(); // of all the secondaries
+		ExecutorService executor = newStationExecutor();
+		for(int adr = 1; adr <= stations; adr++)
+		{
+			final int address = adr;
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					SecondaryHDLCDataLink dl;
+					try {
+						dl = new SecondaryHDLCDataLink(address);
+						dl.setCompression(compression);
+					} finally {
+						connected.countDown();
+					}
+					try {
+						boolean ok = dl.dlConnectIndication().getResult() == Result.ResultCode.SrvSucessful
+						             && dl.dlConnectResponse().getResult() == Result.ResultCode.SrvSucessful;
+						for(int r = 0; ok && r < nRounds; r++)
+							ok = dl.dlDataRequest(message).getResult() == Result.ResultCode.SrvSucessful;
+						if(ok) ok = dl.dlDisconnectIndication().getResult() == Result.ResultCode.SrvSucessful;
+						if(!ok) synchronized(failures) { failures[0]++; }
+						synchronized(ackLatency) { ackLatency.add(dl.getStatistics().total().latency); }
+						dl.close();
+					} catch (Exception e) {
+						synchronized(failures) { failures[0]++; }
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		connected.await();
+		Thread.sleep(settle); // let the server accept all connections
+		console.println("StationLoadTest: "+stations+" secondary stations started ("+executorKind+" threads)");
+
+		// The primary connects to every station, then polls each one in turn
+		PrimaryHDLCDataLink primary = new PrimaryHDLCDataLink(stations);
+		primary.setCompression(deflate);
+		Thread.sleep(settle/2);
+		for(int adr = 1; adr <= stations; adr++)
+		{
+			if(PrimaryStation.connectStation(adr, primary) == false)
+			{
+				console.println("StationLoadTest: could not connect station "+adr);
+				System.exit(1);
+			}
+		}
+		long[] latencies = new long[stations*rounds];  // ns taken by dlDataIndication
+		int count = 0;
+		long start = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+		{
+			for(int adr = 1; adr <= stations; adr++)
+			{
+				long t0 = System.nanoTime();
+				Result res = primary.dlDataIndication(adr);
+				latencies[count++] = System.nanoTime() - t0;
+				if(res.getResult() != Result.ResultCode.SrvSucessful || res.getSdu().length() != size)
+					console.println("StationLoadTest: bad message from station "+adr+": "+res);
+			}
+		}
+		double seconds = (System.nanoTime() - start)/1e9;
+		for(int adr = 1; adr <= stations; adr++) primary.dlDisconnectRequest(adr);
+		done.await();
+		executor.shutdown();
+		primary.close();
+
+		// Results
+		long frames = primary.getStatistics().getIFramesReceived(); // fewer with -deflate
+		Arrays.sort(latencies);
+		console.println("StationLoadTest: "+stations+" stations x "+rounds+" messages of "+size+" bytes in "+seconds+" s"+
+		                (deflate ? " (compressed to "+primary.getStatistics().getDataBytes()+" of "+
+		                           primary.getStatistics().getSduBytes()+" bytes)" : ""));
+		console.println("    I frames: "+frames+" ("+(frames/seconds)+" frames/sec), failed stations: "+failures[0]);
+		console.println("    per station latency (ms): min="+ms(latencies[0])+" p50="+ms(percentile(latencies, 0.50))+
+		                " p99="+ms(percentile(latencies, 0.99))+" max="+ms(latencies[latencies.length-1]));
+		console.println("    primary "+primary.getStatistics().total());
+		console.println("    secondary I frame to ack latency: "+ackLatency.summary(1e6, "ms"));
+		System.exit(0);
+	}
+
+	private static String executorKind;
+
+	// One virtual thread per station when the JVM supports them (Java 21),
+	// one platform thread per station otherwise.
+	private static ExecutorService newStationExecutor()
+	{
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			executorKind = "virtual";
+			return(executor);
+		} catch (Exception e) {
+			executorKind = "platform";
+			return(Executors.newCachedThreadPool());
+		}
+	}
+
+	private static long percentile(long[] sorted, double p)
+	{
+		return(sorted[Math.min(sorted.length-1, (int) (p*sorted.length))]);
+	}
+
+	private static String ms(long ns)
+	{
+		return(String.format("%.2f", ns/1e6));
+	}
+}